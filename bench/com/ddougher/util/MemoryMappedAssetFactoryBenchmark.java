@@ -0,0 +1,186 @@
+package com.ddougher.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import com.ddougher.util.AssetFactory.Addressable;
+
+/*
+ * The basic operations of an Addressable, across payload sizes and block sizes, on 1 thread and on 4 (the
+ * OneThread and FourThreads subclasses). Each fork gets a fresh store in a temporary directory, filled with
+ * a pool of values, and which is deleted afterwards. get reads any value in the pool, while set and swap
+ * only pick from the calling thread's own share of it, since an addressable is not meant to be written by
+ * two threads at once.
+ *
+ * create keeps what it creates in a ring per thread and frees the value it replaces, so the store stays the
+ * same size; createAndFree frees at once. the numbers are throughput, so higher is better.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public abstract class MemoryMappedAssetFactoryBenchmark {
+
+	private static final int POOL = 4096;
+	private static final int RING = 1024;
+
+	@Param({ "64", "1024", "16384" })
+	public int payloadSize;
+
+	@Param({ "1048576", "67108864" })
+	public int blockMax;
+
+	File dir;
+	MemoryMappedAssetFactory factory;
+	Addressable [] pool;
+	int threads;
+	final AtomicInteger threadsSeen = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setUp(BenchmarkParams params) throws IOException {
+		threads = params.getThreads();
+		dir = Files.createTempDirectory("mmaf-bench").toFile();
+		factory = new MemoryMappedAssetFactory(Optional.of(dir.getPath()), Optional.of(blockMax));
+		pool = new Addressable[POOL];
+		ByteBuffer payload = payload(payloadSize, 1);
+		for (int i = 0; i < POOL; i++)
+			pool[i] = factory.createAddressable(payload);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		System.out.println();
+		System.out.println(factory.metrics());
+		factory.close();
+		deleteDirectory(dir);
+	}
+
+	static ByteBuffer payload(int size, long seed) {
+		byte [] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		return ByteBuffer.wrap(bytes);
+	}
+
+	static void deleteDirectory(File dir) {
+		File [] files = dir.listFiles();
+		if (files != null)
+			for (File f: files)
+				f.delete();
+		dir.delete();
+	}
+
+	/** what each thread keeps to itself, set up on its first call since it needs the factory */
+	@State(Scope.Thread)
+	public static class PerThread {
+		ByteBuffer payload;
+		Addressable [] ring;
+		int next;
+		Addressable log;
+		Addressable tail;
+		int appended;
+		Addressable [] pool;
+		int from;
+		int share;
+
+		PerThread ready(MemoryMappedAssetFactoryBenchmark benchmark) {
+			if (ring == null) {
+				payload = payload(benchmark.payloadSize, Thread.currentThread().getId());
+				log = benchmark.factory.createAddressable();
+				tail = benchmark.factory.createAddressable(payload(Math.min(64, benchmark.payloadSize), 7));
+				ring = new Addressable[RING];
+				pool = benchmark.pool;
+				share = POOL / benchmark.threads;
+				from = (benchmark.threadsSeen.getAndIncrement() % benchmark.threads) * share;
+			}
+			return this;
+		}
+
+		/** @return a value from this thread's own share of the pool */
+		Addressable mine() {
+			return pool[from + ThreadLocalRandom.current().nextInt(share)];
+		}
+	}
+
+	private Addressable any() {
+		return pool[ThreadLocalRandom.current().nextInt(POOL)];
+	}
+
+	@Benchmark
+	public Addressable create(PerThread perThread) {
+		PerThread state = perThread.ready(this);
+		Addressable created = factory.createAddressable(state.payload);
+		Addressable old = state.ring[state.next];
+		state.ring[state.next] = created;
+		state.next = (state.next + 1) % RING;
+		if (old != null)
+			old.free();
+		return created;
+	}
+
+	@Benchmark
+	public void createAndFree(PerThread perThread) {
+		factory.createAddressable(perThread.ready(this).payload).free();
+	}
+
+	@Benchmark
+	public ByteBuffer get() {
+		return any().get();
+	}
+
+	@Benchmark
+	public void set(PerThread perThread) {
+		PerThread state = perThread.ready(this);
+		state.mine().set(state.payload);
+	}
+
+	/** appends to a value 64 times before starting it over, so the rope never gets out of hand */
+	@Benchmark
+	public void append(PerThread perThread) {
+		PerThread state = perThread.ready(this);
+		if (++state.appended == 64) {
+			state.appended = 0;
+			state.log.set(state.payload);
+		}
+		state.log.append(state.tail);
+	}
+
+	@Benchmark
+	public void swap(PerThread perThread) {
+		PerThread state = perThread.ready(this);
+		state.mine().swap(state.mine(), null);
+	}
+
+	@Threads(1)
+	public static class OneThread extends MemoryMappedAssetFactoryBenchmark {
+	}
+
+	@Threads(4)
+	public static class FourThreads extends MemoryMappedAssetFactoryBenchmark {
+	}
+
+}
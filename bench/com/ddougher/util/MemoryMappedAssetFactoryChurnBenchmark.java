@@ -0,0 +1,95 @@
+package com.ddougher.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ddougher.util.AssetFactory.Addressable;
+
+/*
+ * Update churn over a fixed set of live values, with small blocks so the low watermark crosses files (of 40
+ * blocks) every few seconds and they have to be deleted while writers carry on.
+ *
+ * fifo replaces the values oldest first, as test3's roll does, so the low watermark follows close behind.
+ * random replaces them in any order, which leaves long lived values pinning the low watermark, and is run
+ * with and without the compactor to show what that costs and what compaction wins back. the metrics and
+ * reclaim stats are printed once the trial is over, before the factory closes, so a stalled low watermark or
+ * a growing reclaim queue shows up next to the throughput without printing inside the measured iterations.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Benchmark)
+public class MemoryMappedAssetFactoryChurnBenchmark {
+
+	private static final int LIVE = 8192;
+
+	@Param({ "fifo", "random" })
+	public String pattern;
+
+	@Param({ "false", "true" })
+	public boolean compaction;
+
+	@Param({ "1024" })
+	public int payloadSize;
+
+	@Param({ "1048576" })
+	public int blockMax;
+
+	File dir;
+	MemoryMappedAssetFactory factory;
+	Addressable [] live;
+	ByteBuffer payload;
+	final AtomicInteger next = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("mmaf-churn").toFile();
+		factory = new MemoryMappedAssetFactory(Optional.of(dir.getPath()), Optional.of(blockMax));
+		if (compaction)
+			factory.withCompaction(40L * blockMax, 0);
+		payload = MemoryMappedAssetFactoryBenchmark.payload(payloadSize, 1);
+		live = new Addressable[LIVE];
+		for (int i = 0; i < LIVE; i++)
+			live[i] = factory.createAddressable(payload);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		System.out.println();
+		System.out.println(factory.metrics());
+		System.out.println(factory.reclaimStats());
+		factory.close();
+		MemoryMappedAssetFactoryBenchmark.deleteDirectory(dir);
+	}
+
+	@Benchmark
+	public void churn() {
+		int i = "fifo".equals(pattern) 
+				? (next.getAndIncrement() & Integer.MAX_VALUE) % LIVE 
+				: ThreadLocalRandom.current().nextInt(LIVE);
+		live[i].set(payload);
+	}
+
+}
@@ -6,6 +6,7 @@ import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.util.ConcurrentModificationException;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.function.Function;
@@ -135,6 +136,15 @@ public class MemoryMappedDocumentStore extends AbstractDocumentStore implements
 		}
 	}
 
+	/**
+	 * puts the document, returning a future that completes once it is on disk. Writes from many callers are 
+	 * forced together, so this is far cheaper than a sync per put when the factory has group commit on.
+	 */
+	public CompletableFuture<Void> putDurably(Document document) {
+		put(document);
+		return assetFactory.durable();
+	}
+
 	@Override
 	public void delete(Document document) {
 		String docId = document.as(MemoryMappedDocument.class).ID().intern();
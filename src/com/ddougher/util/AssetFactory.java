@@ -1,6 +1,10 @@
 package com.ddougher.util;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
 
 public interface AssetFactory {
@@ -11,8 +15,43 @@ public interface AssetFactory {
 		void append(Addressable a);
 		AssetFactory factory();
 		int size();
+
+		/** 
+		 * @return the data, read only. A factory may hand out a view of its own storage rather than a copy, 
+		 * so read it before this addressable is set or freed; after that it may show other data. 
+		 */
 		ByteBuffer get();
 
+		/** the length of the data, which for data kept in pieces can be more than size() can say */
+		default long length() {
+			return size();
+		}
+
+		/** the data in order, a piece at a time, for data too big to get() in one buffer */
+		default Iterator<ByteBuffer> chunks() {
+			return Collections.singletonList(get()).iterator();
+		}
+
+		/** the data as an array of pieces, in order, as a GatheringByteChannel would want them */
+		default ByteBuffer [] gather() {
+			return new ByteBuffer [] { get() };
+		}
+
+		/** sets the data to the pieces in order, without ever needing them in one buffer */
+		default void set(Iterator<ByteBuffer> pieces) {
+			List<ByteBuffer> all = new ArrayList<ByteBuffer>();
+			int length = 0;
+			while (pieces.hasNext()) {
+				ByteBuffer piece = pieces.next();
+				all.add(piece);
+				length += piece.limit();
+			}
+			ByteBuffer data = ByteBuffer.allocate(length);
+			for (ByteBuffer piece: all) 
+				data.put((ByteBuffer)piece.duplicate().position(0));
+			set((ByteBuffer)data.flip());
+		}
+
 		/** swaps a and b */
 		default void swap(Addressable b, UUID tid) {
 			ByteBuffer tmp = b.get();
@@ -38,4 +77,12 @@ public interface AssetFactory {
 		return a;
 	}
 
+	/** creates an addressable for each buffer, in order, which implementations may do more cheaply than one at a time */
+	default List<Addressable> createAddressables(List<ByteBuffer> data) {
+		List<Addressable> created = new ArrayList<Addressable>(data.size());
+		for (ByteBuffer d: data)
+			created.add(createAddressable(d));
+		return created;
+	}
+
 }
\ No newline at end of file
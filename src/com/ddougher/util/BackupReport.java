@@ -0,0 +1,42 @@
+package com.ddougher.util;
+
+import java.io.Serializable;
+
+/*
+ * What a MemoryMappedAssetFactory backup copied, and where the next incremental one has to start. Keep the 
+ * last one and pass it to the next backup() to copy only what has changed since.
+ */
+public final class BackupReport implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public final boolean incremental;
+	public final int blockMax;
+	public final int stripes;
+	public final long lowWatermark;
+	public final long highWatermark;
+	/** where the next incremental backup copies from */
+	public final long resumeFrom;
+	public final long copiedBytes;
+	/** reference counts sent for slices an earlier backup already copied */
+	public final long refCounts;
+	public final long millis;
+
+	BackupReport(boolean incremental, int blockMax, int stripes, long lowWatermark, long highWatermark, long resumeFrom, 
+			long copiedBytes, long refCounts, long millis) {
+		this.incremental = incremental;
+		this.blockMax = blockMax;
+		this.stripes = stripes;
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+		this.resumeFrom = resumeFrom;
+		this.copiedBytes = copiedBytes;
+		this.refCounts = refCounts;
+		this.millis = millis;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("(Incremental:%b, LWM:%d, HWM:%d, Copied:%d bytes, RefCounts:%d, Took:%dms)", 
+				incremental, lowWatermark, highWatermark, copiedBytes, refCounts, millis);
+	}
+}
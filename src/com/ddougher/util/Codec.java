@@ -0,0 +1,18 @@
+package com.ddougher.util;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/*
+ * Turns bytes into fewer bytes and back, for MemoryMappedAssetFactory.withCompression(). Must be safe to use 
+ * from many threads at once, and is serialized along with the factory, since it is needed to read back 
+ * whatever it compressed.
+ */
+public interface Codec extends Serializable {
+
+	/** @return the compressed form of data, or null if it would take more than limit bytes */
+	ByteBuffer compress(ByteBuffer data, int limit);
+	/** @return the length bytes that data was compressed from */
+	ByteBuffer decompress(ByteBuffer data, int length);
+
+}
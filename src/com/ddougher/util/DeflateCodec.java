@@ -0,0 +1,76 @@
+package com.ddougher.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * A Codec for deflate, from java.util.zip. Deflaters and inflaters are kept per thread, and the stream is 
+ * raw (no zlib header or checksum), since the slice header already says what it is and how long.
+ */
+public final class DeflateCodec implements Codec {
+
+	private static final long serialVersionUID = 1L;
+	private final int level;
+	private final transient ThreadLocal<Deflater> deflaters;
+	private final transient ThreadLocal<Inflater> inflaters;
+
+	public DeflateCodec() {
+		this(Deflater.BEST_SPEED);
+	}
+
+	public DeflateCodec(int level) {
+		this.level = level;
+		deflaters = ThreadLocal.withInitial(()->new Deflater(level, true));
+		inflaters = ThreadLocal.withInitial(()->new Inflater(true));
+	}
+
+	private Object readResolve() {
+		return new DeflateCodec(level);
+	}
+
+	@Override
+	public ByteBuffer compress(ByteBuffer data, int limit) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(bytesOf(data));
+		deflater.finish();
+		byte [] out = new byte[Math.max(0, limit)];
+		int length = 0;
+		while (!deflater.finished() && length < out.length)
+			length += deflater.deflate(out, length, out.length-length);
+		return deflater.finished() ? ByteBuffer.wrap(out, 0, length) : null;
+	}
+
+	@Override
+	public ByteBuffer decompress(ByteBuffer data, int length) {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		// raw deflate wants a byte past the end of the input
+		byte [] in = bytesOf(data);
+		inflater.setInput(Arrays.copyOf(in, in.length+1));
+		byte [] out = new byte[length];
+		try {
+			int done = 0;
+			while (done < length && !inflater.finished()) {
+				int inflated = inflater.inflate(out, done, length-done);
+				// a stream that is cut short, or wants a dictionary, would otherwise never get anywhere
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new DataFormatException("Compressed data ended after "+done+" of "+length+" bytes");
+				done += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalStateException(e);
+		}
+		return ByteBuffer.wrap(out);
+	}
+
+	private static byte [] bytesOf(ByteBuffer data) {
+		byte [] bytes = new byte[data.remaining()];
+		data.duplicate().get(bytes);
+		return bytes;
+	}
+
+}
@@ -0,0 +1,324 @@
+package com.ddougher.util;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/*
+ * An AssetFactory for data that does not need to outlive the process: caches, scratch stores, tests and
+ * benchmarks that should not touch the disk.
+ *
+ * data lives in direct ByteBuffer arenas of a fixed size, allocated as they are needed up to the capacity.
+ * slices are bump allocated from the current arena with a CAS on its cursor, and when it runs dry a new
+ * arena takes over and the old one is sealed. a value too big for an arena gets an arena of its own.
+ *
+ * reference counts live on the heap, in the slice object an addressable points at, so as with the memory
+ * mapped factory an addressable set from another shares its slice rather than copying it. each arena counts
+ * its live bytes, and a sealed arena whose live bytes reach 0 is dropped: its memory is freed there and
+ * then, and its share of the capacity given back. since nothing outside the factory may be looking at a
+ * dropped arena, get() hands out heap copies rather than views. an arena that does not fit in the capacity
+ * is refused with an IllegalStateException straight away.
+ */
+public class DirectAssetFactory implements AssetFactory {
+
+	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	private static final AtomicReferenceFieldUpdater<DirectAddressable, Slice> ADDRESSABLE_SLICE =
+			AtomicReferenceFieldUpdater.newUpdater(DirectAddressable.class, Slice.class, "slice");
+
+	private final long capacity;
+	private final int arenaSize;
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong liveBytes = new AtomicLong();
+	private final AtomicLong droppedArenas = new AtomicLong();
+	private final Set<Arena> arenas = ConcurrentHashMap.newKeySet();
+	private volatile Arena current;
+
+	/** a factory of at most capacity bytes, in arenas of 16MB (or the capacity, if that is less) */
+	public DirectAssetFactory(long capacity) {
+		this(capacity, (int)Math.min(capacity, 16*1024*1024));
+	}
+
+	public DirectAssetFactory(long capacity, int arenaSize) {
+		if (arenaSize <= 0 || capacity < arenaSize)
+			throw new IllegalArgumentException("An arena of "+arenaSize+" bytes does not fit in a capacity of "+capacity+" bytes");
+		this.capacity = capacity;
+		this.arenaSize = arenaSize;
+	}
+
+	/** a run of direct memory that slices are bump allocated from */
+	private final class Arena {
+		final ByteBuffer buffer;
+		final AtomicInteger cursor = new AtomicInteger();
+		final AtomicLong live = new AtomicLong();
+		final AtomicBoolean dropped = new AtomicBoolean();
+		volatile boolean sealed;
+
+		Arena(int size) {
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+
+		/** @return the offset of length bytes, or -1 if they do not fit or the arena has been sealed */
+		int tryAllocate(int length) {
+			// counted live first, so a seal from here on cannot drop the arena out from under the slice, and 
+			// then checked, since one before may already have
+			live.addAndGet(length);
+			if (sealed) {
+				release(length);
+				return -1;
+			}
+			while (true) {
+				int offset = cursor.get();
+				if (offset + length > buffer.capacity()) {
+					release(length);
+					return -1;
+				}
+				if (cursor.compareAndSet(offset, offset + length))
+					return offset;
+			}
+		}
+
+		void seal() {
+			sealed = true;
+			if (live.get() == 0)
+				drop();
+		}
+
+		void release(int length) {
+			if (live.addAndGet(-length) == 0 && sealed)
+				drop();
+		}
+
+		private void drop() {
+			if (dropped.compareAndSet(false, true)) {
+				arenas.remove(this);
+				// nothing holds a slice of it any more, and slices are only ever read holding one
+				DirectBuffers.free(buffer);
+				allocated.addAndGet(-buffer.capacity());
+				droppedArenas.incrementAndGet();
+			}
+		}
+	}
+
+	/** the data of one value, and the number of addressables holding it */
+	private static final class Slice {
+		final Arena arena;
+		final int offset;
+		final int length;
+		final AtomicInteger refCount = new AtomicInteger(1);
+
+		Slice(Arena arena, int offset, int length) {
+			this.arena = arena;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/** @return false if the slice was released before it could be acquired */
+		boolean acquire() {
+			while (true) {
+				int count = refCount.get();
+				if (count <= 0)
+					return false;
+				if (refCount.compareAndSet(count, count+1))
+					return true;
+			}
+		}
+
+		/** a view of the data, only to be read while holding a reference */
+		ByteBuffer view() {
+			ByteBuffer view = arena.buffer.asReadOnlyBuffer();
+			view.limit(offset + length);
+			view.position(offset);
+			return view.slice();
+		}
+	}
+
+	private Arena newArena(int size) {
+		while (true) {
+			long used = allocated.get();
+			if (used + size > capacity)
+				throw new IllegalStateException("No room for another "+size+" bytes in a capacity of "+capacity+" bytes");
+			if (allocated.compareAndSet(used, used + size))
+				break;
+		}
+		Arena arena = new Arena(size);
+		arenas.add(arena);
+		return arena;
+	}
+
+	/** copies data into a new slice, holding one reference */
+	private Slice write(ByteBuffer data) {
+		int length = data.limit();
+		Slice slice;
+		if (length > arenaSize) {
+			Arena arena = newArena(length);
+			slice = new Slice(arena, arena.tryAllocate(length), length);
+			arena.seal();
+		} else {
+			while (true) {
+				Arena arena = current;
+				int offset = arena == null ? -1 : arena.tryAllocate(length);
+				if (offset >= 0) {
+					slice = new Slice(arena, offset, length);
+					break;
+				}
+				synchronized (this) {
+					if (current == arena) {
+						current = newArena(arenaSize);
+						if (arena != null)
+							arena.seal();
+					}
+				}
+			}
+		}
+		ByteBuffer target = slice.arena.buffer.duplicate();
+		target.position(slice.offset);
+		ByteBuffer source = data.duplicate();
+		source.position(0);
+		target.put(source);
+		liveBytes.addAndGet(length);
+		return slice;
+	}
+
+	private void release(Slice slice) {
+		if (slice != null && slice.refCount.decrementAndGet() == 0) {
+			liveBytes.addAndGet(-slice.length);
+			slice.arena.release(slice.length);
+		}
+	}
+
+	private class DirectAddressable implements Addressable {
+		volatile Slice slice;
+
+		/** @return the slice, acquired, or null if there is none */
+		private Slice acquireSlice() {
+			while (true) {
+				Slice s = slice;
+				if (s == null || s.acquire())
+					return s;
+			}
+		}
+
+		/** puts s in place of the current slice, and releases that */
+		private void replace(Slice s) {
+			release(ADDRESSABLE_SLICE.getAndSet(this, s));
+		}
+
+		@Override
+		public void set(ByteBuffer data) {
+			replace(data == null || data.limit() <= 0 ? null : write(data));
+		}
+
+		@Override
+		public void set(Addressable src) {
+			replace(((DirectAddressable)src).acquireSlice());
+		}
+
+		@Override
+		public void append(Addressable a) {
+			Slice head = acquireSlice();
+			Slice tail = ((DirectAddressable)a).acquireSlice();
+			try {
+				int length = (head == null ? 0 : head.length) + (tail == null ? 0 : tail.length);
+				ByteBuffer joined = ByteBuffer.allocate(length);
+				if (head != null)
+					joined.put(head.view());
+				if (tail != null)
+					joined.put(tail.view());
+				joined.flip();
+				set(joined);
+			} finally {
+				release(head);
+				release(tail);
+			}
+		}
+
+		/** exchanges the slices, so nothing is copied */
+		@Override
+		public void swap(Addressable b, UUID tid) {
+			DirectAddressable other = (DirectAddressable)b;
+			Slice mine = acquireSlice();
+			Slice theirs = other.acquireSlice();
+			replace(theirs);
+			other.replace(mine);
+		}
+
+		@Override
+		public void resize(int length, UUID tid) {
+			Slice s = acquireSlice();
+			try {
+				ByteBuffer data = s == null ? EMPTY_BUFFER : s.view();
+				set((ByteBuffer)data.duplicate().position(length).flip());
+			} finally {
+				release(s);
+			}
+		}
+
+		@Override
+		public AssetFactory factory() {
+			return DirectAssetFactory.this;
+		}
+
+		@Override
+		public int size() {
+			Slice s = slice;
+			return s == null ? 0 : s.length;
+		}
+
+		/** @return a read only copy, since the arena under a view could be freed as soon as this returns */
+		@Override
+		public ByteBuffer get() {
+			Slice s = acquireSlice();
+			if (s == null)
+				return EMPTY_BUFFER;
+			try {
+				ByteBuffer copy = ByteBuffer.allocate(s.length);
+				copy.put(s.view()).flip();
+				return copy.asReadOnlyBuffer();
+			} finally {
+				release(s);
+			}
+		}
+	}
+
+	@Override
+	public Addressable createAddressable() {
+		return new DirectAddressable();
+	}
+
+	/** @return how the capacity is being used */
+	public ArenaReport arenaStats() {
+		return new ArenaReport(capacity, allocated.get(), liveBytes.get(), arenas.size(), droppedArenas.get());
+	}
+
+	public static final class ArenaReport {
+		public final long capacity;
+		/** bytes of arenas currently allocated */
+		public final long allocatedBytes;
+		/** bytes of slices something still holds */
+		public final long liveBytes;
+		public final long arenas;
+		/** arenas given back since the factory was created */
+		public final long droppedArenas;
+
+		ArenaReport(long capacity, long allocatedBytes, long liveBytes, long arenas, long droppedArenas) {
+			this.capacity = capacity;
+			this.allocatedBytes = allocatedBytes;
+			this.liveBytes = liveBytes;
+			this.arenas = arenas;
+			this.droppedArenas = droppedArenas;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("(Capacity:%d bytes, Allocated:%d bytes, Live:%d bytes, Arenas:%d, Dropped:%d arenas)",
+					capacity, allocatedBytes, liveBytes, arenas, droppedArenas);
+		}
+	}
+
+}
@@ -0,0 +1,62 @@
+package com.ddougher.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/*
+ * Frees the memory behind a direct or mapped ByteBuffer there and then, rather than whenever the collector
+ * gets to it: sun.misc.Unsafe.invokeCleaner on 9+, the buffer's own Cleaner on 8. Nothing may touch the
+ * buffer, or any view of it, afterwards, so callers only free what they have never handed out.
+ */
+final class DirectBuffers {
+
+	/** frees a direct buffer, or null where the runtime has no way to */
+	private static final MethodHandle FREER = freer();
+
+	private DirectBuffers() {
+	}
+
+	/** @return true if free() can actually free anything on this runtime */
+	static boolean canFree() {
+		return FREER != null;
+	}
+
+	/** frees buffer, or leaves it to the collector if the runtime wont let us */
+	static void free(ByteBuffer buffer) {
+		if (FREER == null || !buffer.isDirect())
+			return;
+		try {
+			FREER.invoke(buffer);
+		} catch (Throwable t) {
+		}
+	}
+
+	private static MethodHandle freer() {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			return lookup
+					.findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+					.bindTo(theUnsafe.get(null));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+		}
+		try {
+			Method cleanerMethod = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Method cleanMethod = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			cleanMethod.setAccessible(true);
+			return MethodHandles.filterReturnValue(
+					lookup.unreflect(cleanerMethod).asType(MethodType.methodType(Object.class, ByteBuffer.class)),
+					lookup.unreflect(cleanMethod).asType(MethodType.methodType(void.class, Object.class)));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+}
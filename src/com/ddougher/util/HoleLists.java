@@ -0,0 +1,111 @@
+package com.ddougher.util;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+import com.ddougher.util.MemoryMappedAssetFactory.HoleReport;
+
+/*
+ * The released slices of a MemoryMappedAssetFactory waiting to be reused, in lists by size class: holes of at
+ * least 2^c bytes go in list c. Each list is capped, and beyond that released slices are just left for the
+ * low watermark. The lists know nothing of the files; whether a hole may be reused yet, and whether it is
+ * still free, is up to the factory.
+ */
+final class HoleLists {
+
+	/** a released slice waiting to be reused */
+	static final class Hole {
+		final long physicalOffset;
+		final int size;
+		/** the epoch it was released in */
+		final int epoch;
+		Hole(long physicalOffset, int size, int epoch) {
+			this.physicalOffset = physicalOffset;
+			this.size = size;
+			this.epoch = epoch;
+		}
+	}
+
+	private final ConcurrentLinkedDeque<Hole> [] lists = newLists();
+	private final AtomicIntegerArray counts = new AtomicIntegerArray(lists.length);
+	private final int maxPerClass;
+	private final LongAdder reusedSlices = new LongAdder();
+	private final LongAdder reusedBytes = new LongAdder();
+
+	HoleLists(int maxPerClass) {
+		this.maxPerClass = maxPerClass;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ConcurrentLinkedDeque<Hole> [] newLists() {
+		ConcurrentLinkedDeque<Hole> [] lists = (ConcurrentLinkedDeque<Hole> [])new ConcurrentLinkedDeque<?>[32];
+		for (int i = 0; i < lists.length; i++)
+			lists[i] = new ConcurrentLinkedDeque<Hole>();
+		return lists;
+	}
+
+	private static int sizeClass(int size) {
+		return 31 - Integer.numberOfLeadingZeros(size);
+	}
+
+	void add(long physicalOffset, int size, int epoch) {
+		int c = sizeClass(size);
+		if (counts.incrementAndGet(c) <= maxPerClass)
+			lists[c].addLast(new Hole(physicalOffset, size, epoch));
+		else
+			counts.decrementAndGet(c);
+	}
+
+	/**
+	 * takes a hole for a slice of length bytes (header included), putting what is left over back as a hole
+	 * of its own. a hole is only taken once finished says every operation of its epoch has, and claim is
+	 * told to make it length bytes long, which it may refuse if the hole has gone in the meantime.
+	 * @return the offset of the slice, or -1 if there is no hole that will do
+	 */
+	long take(int length, IntPredicate finished, Predicate<Hole> claim) {
+		int first = sizeClass(length);
+		for (int c = first; c < lists.length && c <= first + 2; c++) {
+			// in the first class a hole may be too small, so look a little way in before moving on
+			for (int tries = c == first ? 4 : 1; tries > 0; tries--) {
+				Hole hole = lists[c].pollFirst();
+				if (hole == null)
+					break;
+				if (!finished.test(hole.epoch)) {
+					lists[c].addFirst(hole);
+					break;
+				}
+				int rest = hole.size - length;
+				if (rest < 0 || (rest > 0 && rest < 16)) {
+					lists[c].addLast(hole);
+					continue;
+				}
+				// from here on the hole is either used or found to be gone
+				counts.decrementAndGet(c);
+				if (!claim.test(hole))
+					continue;
+				if (rest > 0)
+					add(hole.physicalOffset+length, rest, hole.epoch);
+				reusedSlices.increment();
+				reusedBytes.add(length);
+				return hole.physicalOffset;
+			}
+		}
+		return -1;
+	}
+
+	HoleReport report() {
+		long count = 0, bytes = 0;
+		for (Deque<Hole> list: lists) {
+			for (Hole hole: list) {
+				count++;
+				bytes += hole.size;
+			}
+		}
+		return new HoleReport(reusedSlices.sum(), reusedBytes.sum(), count, bytes);
+	}
+
+}
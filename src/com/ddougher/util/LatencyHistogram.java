@@ -0,0 +1,85 @@
+package com.ddougher.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A histogram of latencies in nanoseconds, cheap enough to record on every operation.
+ *
+ * values go in power of 2 buckets (bucket i holds 2^(i-1) up to 2^i - 1), each a LongAdder, so recording
+ * is a leading zero count and an uncontended add. percentiles come out as the upper bound of the bucket
+ * they fall in, so they are never understated, and are at most twice the truth.
+ */
+public final class LatencyHistogram {
+
+	private final LongAdder [] buckets = new LongAdder[64];
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public LatencyHistogram() {
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = new LongAdder();
+	}
+
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets[64 - Long.numberOfLeadingZeros(nanos) & 63].increment();
+		totalNanos.add(nanos);
+		if (nanos > maxNanos.get())
+			maxNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	/** records the time since startedNanos, as given by System.nanoTime() */
+	public void since(long startedNanos) {
+		record(System.nanoTime() - startedNanos);
+	}
+
+	public Snapshot snapshot() {
+		long [] counts = new long[buckets.length];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = buckets[i].sum();
+		return new Snapshot(counts, totalNanos.sum(), maxNanos.get());
+	}
+
+	/** the histogram as it was at one moment (near enough, since recording never stops for it) */
+	public static final class Snapshot {
+		private final long [] counts;
+		public final long count;
+		public final long totalNanos;
+		public final long maxNanos;
+
+		Snapshot(long [] counts, long totalNanos, long maxNanos) {
+			this.counts = counts;
+			long count = 0;
+			for (long c: counts)
+				count += c;
+			this.count = count;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+		}
+
+		public long meanNanos() {
+			return count == 0 ? 0 : totalNanos / count;
+		}
+
+		/** @return the latency that a fraction p (0 to 1) of the recorded values were at or under */
+		public long percentileNanos(double p) {
+			long wanted = (long)Math.ceil(p * count);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= wanted && seen > 0)
+					return Math.min(maxNanos, i == 63 ? Long.MAX_VALUE : (1L << i) - 1);
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("(Count:%d, Mean:%dus, P50:%dus, P99:%dus, P999:%dus, Max:%dus)", count, meanNanos()/1000,
+					percentileNanos(0.5)/1000, percentileNanos(0.99)/1000, percentileNanos(0.999)/1000, maxNanos/1000);
+		}
+	}
+
+}
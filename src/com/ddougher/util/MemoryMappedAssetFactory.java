@@ -2,23 +2,52 @@ package com.ddougher.util;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /*
  * Must support serialization via a recreation strategy
@@ -30,39 +59,276 @@ import java.util.function.Supplier;
  * block = physicalOffset / Integer.MAX_INT
  * file_number = block/40
  * 
+ * blocks can be striped round robin over several data directories (one per volume): block b lives in 
+ * directory b % stripes, in the file named file_number, at ((b%40)/stripes) blocks in. with one directory 
+ * this is the original layout. the checkpoint lives in the first directory. the stripe unit is a whole block, 
+ * since a block is a single mapping of a single file: writers only spread over several directories at once 
+ * when their reservations are in different blocks, so a block that many writers fill together sends them all 
+ * to one volume. small blocks (a few reservations each) spread the writes; large ones mostly spread the 
+ * forcing, preallocation and reads of what is already written.
+ * 
  * the first (intsize) bytes of an addressable indicate the size
  * the next (intsize) bytes of an addressable indicate the reference count
  * 
+ * if the top bit of the size is set, the header is extended by a further (intsize) of flags, and the data 
+ * starts after them. the size never needs that bit, since a slice is never bigger than a block.
+ *
+ * data too big for one block is written as a run of chunk slices, plus a CHUNKED manifest slice listing
+ * them (total length, count, then offset and length of each chunk). the manifest holds the only reference 
+ * to each chunk, and releasing the manifest releases them. chunks stay incomplete until the manifest is 
+ * written, so a crash part way through leaves nothing live behind.
+ * 
+ * append() builds ropes out of the same manifests: an entry may name another manifest as well as a plain 
+ * slice, and entries are shared, each one holding a reference. appending writes a new manifest of at most 
+ * ROPE_FANOUT entries (the entries of the old one plus the appended data, or when that is full, the old 
+ * manifest itself plus the appended data) so no data is copied, and the tree grows down its left side. 
+ * results under the rope threshold are simply copied, and flatten() copies a rope back into chunks.
+ *
+ * with a codec configured, data at or over the threshold is compressed when that makes it smaller. such a 
+ * slice is flagged COMPRESSED and holds the original length (intsize) followed by the compressed bytes. 
+ * chunks are compressed one by one, manifests never.
+ *
+ * with deduplication on, whole values written by set() are fingerprinted, and a live slice with the same 
+ * fingerprint and the same bytes is shared (by taking another reference to it) instead of writing a copy. 
+ * the fingerprint index lives only in memory: it forgets a slice when its last reference goes, follows it 
+ * when the compactor moves it, and starts out empty after a restart.
+ * 
  * if the reference count is < 0, then the addressable is garbage collectible
  * if the reference count is 0, this is an incomplete writeSlice (callers should acquire after write)
  * 		this makes it easy to find and garbage collect incomplete slices at restart
  * 
+ * with the reference count table on, counts that change after a slice has gone live are kept in an in memory 
+ * side table instead, and written back to the headers every 10 seconds and at close, so old pages are not 
+ * dirtied on every acquire and release. going live (0 to 1) and being forwarded still go straight to the 
+ * header. after a crash, the counts recovered are those of the last write back.
+ * 
+ * with hole reuse on, the space of a released slice is kept on a free list by size class, and a new slice 
+ * that fits is written there (splitting off any remainder as a smaller garbage slice) instead of at the high 
+ * watermark. this breaks WORM order, but the headers stay walkable, and a hole is claimed and passed by the 
+ * low watermark only under its header lock, so the two never cross. a hole is only reused once every 
+ * operation that was running when it was released has finished (the same epochs that unmapping waits on), 
+ * and only when get() hands out copies, since a view would otherwise show whatever was written over it.
+ * 
  * garbage collection should be parasitic, and move the low watermark quickly
  * 
- * if the low watermark moves past a block boundary, then a file can be removed.
+ * blocks can be extended and mapped ahead of the high watermark by a background preallocator, which is 
+ * woken whenever the high watermark moves into a new block.
  * 
+ * if the low watermark moves past a block boundary, then a file can be removed.
+ * the mappings of blocks it passes are dropped as soon as no operation can be using them. by default get() 
+ * hands out views of the blocks, so the garbage collector unmaps them once the last view is gone; a file 
+ * that is still mapped is deleted where the platform allows it, and tried again later where it does not. 
+ * with explicit unmapping (or a mapped window) get() hands out copies instead, so the mappings are unmapped 
+ * there and then, and a file is deleted the moment the last of its mappings is gone.
+ *
+ * a long lived slice near the low watermark pins everything written after it, so the compactor copies live 
+ * slices out of the oldest file to the high watermark. the old header gets a reference count of FORWARDED 
+ * (which the low watermark treats as garbage) and the move is recorded in the forwards map. addressables 
+ * still naming the old offset are repointed lazily the next time they are used; each forward counts its 
+ * remaining holders and disappears when the last one has moved on. the forwards are written out with the 
+ * checkpoint, and always before a file is deleted, so recover() finds them again after a crash.
+ *
+ * space is claimed from the high watermark with a CAS, in reservations that end on a multiple of the
+ * reservation size within the block. each writer thread bump allocates its slices out of its own
+ * reservation, so writers only meet on the high watermark when a reservation runs dry. the unused tail of
+ * a reservation always carries a header with a reference count of 0, so the low watermark stops there until
+ * the reservation is retired (at which point the tail becomes a garbage slice). the cleaner retires any 
+ * reservation that has not moved between two of its sweeps (10 seconds apart, unless set otherwise with 
+ * withIdleReservationTimeout()), so an idle writer only holds things up for a while.
+ *
+ * because reservations are aligned, a zero header (space that was claimed but never written) can always be
+ * skipped by moving to the next multiple of the reservation size.
+ *
+ * every write marks the range it touched dirty on its block. sync() and the group commit flusher only force 
+ * those ranges, and durable() hands out futures that complete once the next flush after the call is done, so 
+ * many writers share one force.
+ *
+ * the number of mapped blocks can be capped. past the cap, the least recently used block is dropped from the
+ * blocks map and unmapped explicitly once every operation that could still be holding it has finished (the
+ * operation counters come in two epochs for this, so waiting out the old epoch never has to stop new
+ * operations). a block that is needed again is simply mapped again. because a view can outlive its
+ * operation, get() hands out heap copies when the cap is on.
+ *
+ * every few seconds a checkpoint file records the watermarks and the oldest point an unfinished write could
+ * be at. after a crash, recover() only has to walk the headers from there on (or everything, without a 
+ * checkpoint) to find the high watermark, discard incomplete slices and patch over unwritten gaps.
+ *
+ * backup() copies the files while the store stays open, pinning the files from the low watermark on until 
+ * the copy is done. MemoryMappedBackup does the copying, and has the stream format.
+ *
+ * since everything is appended, the files are in effect a log, and MemoryMappedReplication ships it to read 
+ * only followers in the same format as backup(). with the reference count table on, counts reach the 
+ * follower when they are written back.
+ *
+ * metrics() reports latency histograms of the writes and reads made through addressables and handles, block 
+ * mapping, forces and flushes, along with the watermarks and the live bytes between them. live bytes are counted as reference counts cross 
+ * between 0 and 1, so nothing has to be walked to report them.
+ *
+ * with admission control on, a write checks how much garbage is waiting between the watermarks (and how much
+ * disk is left) before it starts. past the soft limit it is held back, for longer the nearer the hard limit
+ * is, and the compactor and the cleaner are woken. at the hard limit it gets one more wait and is then turned
+ * away with a WriteRejectedException, rather than carrying on until the disk is full.
+ *
  */
 public class MemoryMappedAssetFactory implements AssetFactory, Serializable, Closeable {
 
 	private static final long serialVersionUID = 2L;
+
+	/** 
+	 * the version of the serialized fields. a factory serialized before this was added reads back as 0, and 
+	 * readObject gives every setting it could not have had its default.
+	 */
+	private static final int FORMAT = 1;
 	
 	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
 	
-	private transient Map<Integer, RandomAccessFile> files;
-	private transient Map<Integer, MappedByteBuffer> blocks;
-	private transient ConcurrentLinkedQueue<Integer> oldFileNumbers;
+	/** reference count of a slice that the compactor has moved elsewhere */
+	private static final int FORWARDED = Integer.MIN_VALUE;
+	
+	private static final String CHECKPOINT = "checkpoint";
+	/** where the compactor's forwards are kept beside the checkpoint */
+	private static final String FORWARDS = "forwards";
+
+	/** the longest admission control holds back a write that is below the hard limits */
+	private static final long MAX_THROTTLE_NANOS = 10_000_000L;
+	/** how often a throttled write may wake the compactor and the cleaner, and how long free space is trusted for */
+	private static final long RELIEF_INTERVAL_NANOS = 100_000_000L;
+
+	/** set on the size of a slice whose header carries flags */
+	private static final int EXTENDED = 0x80000000;
+	/** flag on a manifest of chunks */
+	private static final int CHUNKED = 1;
+	/** flag on a slice whose data went through the codec */
+	private static final int COMPRESSED = 2;
+
+	/** the most entries append() puts in a manifest before nesting it */
+	private static final int ROPE_FANOUT = 16;
+
+	/** beyond this many holes of a size class, released slices are just left for the low watermark */
+	private static final int MAX_HOLES_PER_CLASS = 1 << 20;
+
+	private static final AtomicLongFieldUpdater<MemoryMappedAddressable> ADDRESSABLE_OFFSET = 
+			AtomicLongFieldUpdater.newUpdater(MemoryMappedAddressable.class, "physicalOffset");
+
+	/** MappedByteBuffer.force(int,int) where the runtime has it (13+), otherwise whole blocks are forced */
+	private static final Method FORCE_RANGE = forceRangeMethod();
+	
+	/** by file number, one per data directory */
+	private transient Map<Integer, RandomAccessFile[]> files;
+	private transient Map<Integer, Mapping> blocks;
+	/** files the low watermark has passed, waiting for their blocks to be unmapped */
+	private transient ConcurrentLinkedQueue<PendingFile> reclaimQueue;
+	private transient ReentrantLock reclaimLock;
+	/** the oldest file each backup in progress needs, which reclaim() leaves alone, along with all later ones */
+	private transient Map<Object, Integer> pins;
+	private transient AtomicLong reclaimedFiles;
+	private transient AtomicLong unmappedBlocks;
+	private transient LongAdder reclaimLatency;
+	private transient AtomicLong maxReclaimLatency;
+	private transient AtomicLong checkpointFailures;
+	private transient volatile String checkpointError;
+	private transient LongAdder compressedSlices;
+	private transient LongAdder incompressibleSlices;
+	private transient LongAdder originalBytes;
+	private transient LongAdder storedBytes;
+	private transient ConcurrentHashMap<Long, Long> fingerprints;
+	private transient ConcurrentHashMap<Long, Long> fingerprintsByOffset;
+	private transient LongAdder sharedSlices;
+	private transient LongAdder sharedBytes;
+	private transient HoleLists holes;
 	private transient Object cleanupMonitor;
 	private transient Thread cleanerThread;
+	private transient Thread compactorThread;
+	private transient Thread preallocatorThread;
+	private transient Object preallocationMonitor;
+	private transient volatile WarmUp warmUp;
+	private transient volatile CompactionReport compactionTotals;
+	private transient RecoveryReport recoveryReport;
+	/** anything unfinished below this was cut short by a crash, rather than still being written */
+	private transient long recoveredHighWatermark;
 	private transient volatile boolean active;
 	private transient boolean closed;
+	private transient volatile boolean closing;
+	/** operations in progress, by epoch */
+	private transient LongAdder [] operations;
+	private transient volatile int epoch;
+	/** every operation from an epoch before this one has finished */
+	private transient volatile int quiescentEpoch;
+	/** evicted mappings, waiting for the operations that might still use them to finish */
+	private transient ConcurrentLinkedQueue<Retired> retired;
+	/** when reclaim() is next worth trying */
+	private transient volatile long nextReclaim;
+	private transient Object closeMonitor;
+	private transient RefCountStripe [] headerLocks;
+	private transient ThreadLocal<Reservation> reservation;
+	private transient Set<Reservation> activeReservations;
+	private transient Map<Integer, DirtyRange> dirtyBlocks;
+	private transient ConcurrentLinkedQueue<CompletableFuture<Void>> awaitingFlush;
+	private transient AtomicInteger awaitingCount;
+	private transient ReentrantLock flushLock;
+	private transient Object flushMonitor;
+	private transient Thread flusherThread;
+	/** shipping to followers, or following a leader, or null */
+	private transient MemoryMappedReplication replication;
+	private transient LatencyHistogram writeLatency;
+	private transient LatencyHistogram readLatency;
+	private transient LatencyHistogram mapLatency;
+	private transient LatencyHistogram forceLatency;
+	private transient LatencyHistogram syncLatency;
+	private transient LongAdder writtenBytes;
+	private transient LatencyHistogram throttleLatency;
+	private transient LongAdder throttledWrites;
+	private transient LongAdder rejectedWrites;
+	private transient AtomicLong lastRelief;
+	private transient volatile long freeDiskBytes;
+	private transient volatile long freeDiskCheckedAt;
+	private transient Object compactionMonitor;
+	/** bumped for every forward added, and what it was when the forwards were last written out */
+	private transient AtomicLong forwardsChanged;
+	private transient volatile long forwardsStored;
+	/** set for a factory serialized before live bytes were kept, so they are counted when it is first used */
+	private transient boolean recountLiveBytes;
 	
+	private int format = FORMAT;
 	private File baseFile;
+	private File [] dataDirs;
 	private final int BLOCK_MAX;
+	private int reservationSize;
+	private long idleReservationTimeout;
 	
 	private AtomicLong highWatermark = new AtomicLong(1L);
 	private AtomicLong lowWatermark = new AtomicLong(1L); 
-	private ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
 	private ReentrantLock watermarkLock = new ReentrantLock();
+	private ReentrantLock compactionLock = new ReentrantLock();
+	private ConcurrentHashMap<Long, Forward> forwards = new ConcurrentHashMap<Long, Forward>();
+	/** bytes (headers included) of slices with a reference count above 0 */
+	private LongAdder liveBytes = new LongAdder();
+	private long compactionThreshold;
+	private long compactionRate;
+	private long softUnreclaimed;
+	private long hardUnreclaimed;
+	private long softFreeDisk;
+	private long hardFreeDisk;
+	private long groupCommitInterval;
+	private int groupCommitBatch;
+	private int mappedWindow;
+	private boolean explicitUnmap;
+	private int compressionThreshold;
+	private Codec codec;
+	private int ropeThreshold = 1024;
+	private boolean deduplicate;
+	private boolean refCountTable;
+	private boolean reuseHoles;
+	private int preallocateBlocks;
+	private boolean preTouch;
+	private long warmUpBudget;
+	private int warmUpParallelism;
+	private boolean replicate;
+	private int replicationPort;
+	private long replicationInterval;
+	/** set on a follower, which is read only */
+	private String leaderHost;
+	private int leaderPort;
 	
 	
 	/**
@@ -72,10 +338,43 @@ public class MemoryMappedAssetFactory implements AssetFactory, Serializable, Clo
 		if (!active) {
 			synchronized(this) {
 				if (!active) {
-					baseFile.mkdirs();
+					for (File dir: dataDirs)
+						dir.mkdirs();
+					if (recountLiveBytes) {
+						liveBytes.reset();
+						liveBytes.add(countLiveBytes());
+						recountLiveBytes = false;
+					}
 					active = true;
-					cleanerThread = new Thread(this::cleanupFiles, baseFile.getName()+" file cleanup");
+					writeCheckpoint();
+					cleanerThread = new Thread(this::checkpointAndReclaim, baseFile.getName()+" file cleanup");
 					cleanerThread.start();
+					if (compactionThreshold > 0 || hardUnreclaimed > 0 || hardFreeDisk > 0) {
+						compactorThread = new Thread(this::compactInBackground, baseFile.getName()+" compactor");
+						compactorThread.setDaemon(true);
+						compactorThread.start();
+					}
+					if (preallocateBlocks > 0) {
+						preallocatorThread = new Thread(this::preallocateInBackground, baseFile.getName()+" preallocator");
+						preallocatorThread.setDaemon(true);
+						preallocatorThread.start();
+					}
+					if (warmUpBudget > 0)
+						startWarmUp(warmUpBudget, warmUpParallelism);
+					if (groupCommitInterval > 0) {
+						flusherThread = new Thread(this::flushInBackground, baseFile.getName()+" flusher");
+						flusherThread.setDaemon(true);
+						flusherThread.start();
+					}
+					if (replicate) {
+						try {
+							replication = MemoryMappedReplication.lead(this, baseFile.getName(), replicationPort, replicationInterval);
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+					if (leaderHost != null)
+						replication = MemoryMappedReplication.follow(this, baseFile.getName(), leaderHost, leaderPort);
 				}
 			}
 		}
@@ -86,76 +385,376 @@ public class MemoryMappedAssetFactory implements AssetFactory, Serializable, Clo
 	}
 	
 	public MemoryMappedAssetFactory(Optional<String> basePath, Optional<Integer> maxBlockSize) {
+		this(Collections.singletonList(basePath.orElse("data")), maxBlockSize);
+	}
+
+	/**
+	 * Stripes the blocks round robin across basePaths, which would normally each be on their own volume. 
+	 * Writes only go to more than one volume at a time when they are in different blocks, so the block size 
+	 * sets how finely they spread. The first path also holds the checkpoint. The list (and its order) must stay the same for the life of the store.
+	 */
+	public MemoryMappedAssetFactory(List<String> basePaths, Optional<Integer> maxBlockSize) {
+		if (basePaths.isEmpty())
+			throw new IllegalArgumentException("At least one base path is required");
 		BLOCK_MAX = maxBlockSize.orElse(Integer.MAX_VALUE);
-		baseFile = new File(basePath.orElse("data"));
+		dataDirs = basePaths.stream().map(File::new).toArray(File[]::new);
+		baseFile = dataDirs[0];
+		reservationSize = defaultReservationSize(BLOCK_MAX);
 		initTransients();
 	}
 
 	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
 		in.defaultReadObject();
+		if (reservationSize <= 0)
+			reservationSize = defaultReservationSize(BLOCK_MAX);
+		if (dataDirs == null)
+			dataDirs = new File [] { baseFile };
+		if (forwards == null)
+			forwards = new ConcurrentHashMap<Long, Forward>();
+		if (compactionLock == null)
+			compactionLock = new ReentrantLock();
+		if (liveBytes == null)
+			liveBytes = new LongAdder();
+		if (format < 1) {
+			// zero is off for every other setting, which is also what an older factory had
+			ropeThreshold = 1024;
+			recountLiveBytes = true;
+			format = FORMAT;
+		}
 		initTransients();
 	}
 	
+	/** 64k, or a sixteenth of a block for small blocks */
+	private static int defaultReservationSize(int blockMax) {
+		return Math.max(16, Math.min(64*1024, blockMax/16));
+	}
+	
 	private void initTransients() {
-		files = new HashMap<Integer, RandomAccessFile>();
-		blocks = new ConcurrentHashMap<Integer, MappedByteBuffer>();
-		oldFileNumbers = new ConcurrentLinkedQueue<Integer>();
+		files = new HashMap<Integer, RandomAccessFile[]>();
+		blocks = new ConcurrentHashMap<Integer, Mapping>();
+		retired = new ConcurrentLinkedQueue<Retired>();
+		reclaimQueue = new ConcurrentLinkedQueue<PendingFile>();
+		reclaimLock = new ReentrantLock();
+		pins = new ConcurrentHashMap<Object, Integer>();
+		writeLatency = new LatencyHistogram();
+		readLatency = new LatencyHistogram();
+		mapLatency = new LatencyHistogram();
+		forceLatency = new LatencyHistogram();
+		syncLatency = new LatencyHistogram();
+		writtenBytes = new LongAdder();
+		throttleLatency = new LatencyHistogram();
+		throttledWrites = new LongAdder();
+		rejectedWrites = new LongAdder();
+		lastRelief = new AtomicLong(System.nanoTime() - RELIEF_INTERVAL_NANOS);
+		freeDiskBytes = -1;
+		compactionMonitor = new Object();
+		forwardsChanged = new AtomicLong(forwards.isEmpty() ? 0 : 1);
+		forwardsStored = 0;
+		reclaimedFiles = new AtomicLong();
+		unmappedBlocks = new AtomicLong();
+		reclaimLatency = new LongAdder();
+		maxReclaimLatency = new AtomicLong();
+		checkpointFailures = new AtomicLong();
+		checkpointError = null;
+		compressedSlices = new LongAdder();
+		incompressibleSlices = new LongAdder();
+		originalBytes = new LongAdder();
+		storedBytes = new LongAdder();
+		fingerprints = new ConcurrentHashMap<Long, Long>();
+		fingerprintsByOffset = new ConcurrentHashMap<Long, Long>();
+		sharedSlices = new LongAdder();
+		sharedBytes = new LongAdder();
+		holes = new HoleLists(MAX_HOLES_PER_CLASS);
+		reservation = new ThreadLocal<Reservation>();
+		activeReservations = ConcurrentHashMap.newKeySet();
+		dirtyBlocks = new ConcurrentHashMap<Integer, DirtyRange>();
+		awaitingFlush = new ConcurrentLinkedQueue<CompletableFuture<Void>>();
+		awaitingCount = new AtomicInteger();
+		flushLock = new ReentrantLock();
+		flushMonitor = new Object();
+		compactionTotals = new CompactionReport(0, 0, 0);
 		cleanupMonitor = new Object();
+		preallocationMonitor = new Object();
+		closeMonitor = new Object();
+		operations = new LongAdder [] { new LongAdder(), new LongAdder() };
+		epoch = 0;
+		headerLocks = new RefCountStripe[256];
+		for (int i = 0; i < headerLocks.length; i++)
+			headerLocks[i] = new RefCountStripe();
 		active = false;
+		closing = false;
 		closed = false;
 	}
 
 	
-	// this is really messy but does the job. TODO clean this up and make it nice
-	private void cleanupFiles() {
-		int j = 0;
-		while (active || (j < 1000 && !oldFileNumbers.isEmpty())) {
+	/** 
+	 * checkpoints every 10 seconds, retires the reservations of threads that have stopped writing, and sweeps 
+	 * up anything the reclaim after each operation left behind (which only happens when nothing else is running)
+	 */
+	private void checkpointAndReclaim() {
+		long now = System.currentTimeMillis(), nextCheckpoint = now + 10000, nextSweep = now + idleReservationMillis();
+		while (active) {
 			synchronized (cleanupMonitor) {
 				try {
-					if (active) cleanupMonitor.wait(10000);
-					LinkedList<Integer> toRemove = new LinkedList<Integer>();
-					oldFileNumbers.forEach(fn-> {
-						File f = new File(baseFile, Integer.toString(fn));
-						if (f.exists())
-							f.delete();
-						else
-							toRemove.add(fn);
-					});
-					oldFileNumbers.removeAll(toRemove);
+					cleanupMonitor.wait(Math.max(1, Math.min(nextCheckpoint, nextSweep) - System.currentTimeMillis()));
 				} catch (InterruptedException e) {
 				}
+				now = System.currentTimeMillis();
+				if (active && now >= nextSweep) {
+					retireIdleReservations();
+					nextSweep = now + idleReservationMillis();
+				}
+				if (active && now >= nextCheckpoint) {
+					checkpointRefCounts();
+					writeCheckpoint();
+					nextCheckpoint = now + 10000;
+				}
 			}
-			if (!active) {
-				if (oldFileNumbers.isEmpty())
-					return;
-				System.gc();
-				j++;
+			reclaim();
+		}
+	}
+
+	/** unmaps what can be unmapped, then deletes whichever passed files no longer have anything mapped */
+	private void reclaim() {
+		if (!reclaimLock.tryLock())
+			return;
+		try {
+			reclaimRetired();
+			int pinnedFrom = pins.isEmpty() ? Integer.MAX_VALUE : Collections.min(pins.values());
+			boolean forwardsSafe = false;
+			for (PendingFile pending: reclaimQueue) {
+				if (pending.fileNumber >= pinnedFrom)
+					continue;
+				if (DirectBuffers.canFree() && copiesViews() && retired.stream().anyMatch(r->r.blockNumber/40 == pending.fileNumber))
+					continue;
+				// once a compacted file is gone, the forwards are the only record of where its slices went
+				if (!forwardsSafe) {
+					try {
+						storeForwards();
+					} catch (IOException e) {
+						checkpointFailed(e);
+						return;
+					}
+					forwardsSafe = true;
+				}
+				if (deleteFile(pending.fileNumber)) {
+					reclaimQueue.remove(pending);
+					long latency = System.nanoTime() - pending.queuedAt;
+					reclaimedFiles.incrementAndGet();
+					reclaimLatency.add(latency);
+					maxReclaimLatency.accumulateAndGet(latency, Math::max);
+				}
 			}
+		} finally {
+			reclaimLock.unlock();
+		}
+	}
+
+	/** @return true once no stripe of the file is left */
+	private boolean deleteFile(int fileNumber) {
+		boolean gone = true;
+		for (int stripe = 0; stripe < dataDirs.length; stripe++) {
+			File f = stripeFile(stripe, fileNumber);
+			if (f.exists() && !f.delete())
+				gone = false;
+		}
+		return gone;
+	}
+
+	private static final class PendingFile {
+		final int fileNumber;
+		final long queuedAt = System.nanoTime();
+		PendingFile(int fileNumber) {
+			this.fileNumber = fileNumber;
+		}
+	}
+
+	/** @return where reclamation stands: what is still waiting and how long files took to go */
+	public ReclaimReport reclaimStats() {
+		long reclaimed = reclaimedFiles.get();
+		return new ReclaimReport(
+				reclaimQueue.size(), 
+				retired.size(), 
+				reclaimed, 
+				unmappedBlocks.get(), 
+				reclaimed == 0 ? 0 : reclaimLatency.sum()/reclaimed/1_000_000, 
+				maxReclaimLatency.get()/1_000_000, 
+				checkpointFailures.get(), 
+				checkpointError);
+	}
+
+	/** the state of the reclaim queue */
+	public static final class ReclaimReport {
+		/** files the low watermark has passed that are not deleted yet */
+		public final long pendingFiles;
+		/** block mappings waiting on running operations before they can be unmapped */
+		public final long pendingMappings;
+		public final long reclaimedFiles;
+		public final long unmappedBlocks;
+		/** from the low watermark passing a file to the file being deleted */
+		public final long meanLatencyMillis;
+		public final long maxLatencyMillis;
+		/** checkpoints (or forwards) that could not be written. a file is not deleted until its forwards are */
+		public final long checkpointFailures;
+		/** why the last one failed, or null */
+		public final String checkpointError;
+
+		ReclaimReport(long pendingFiles, long pendingMappings, long reclaimedFiles, long unmappedBlocks, long meanLatencyMillis, long maxLatencyMillis, 
+				long checkpointFailures, String checkpointError) {
+			this.pendingFiles = pendingFiles;
+			this.pendingMappings = pendingMappings;
+			this.reclaimedFiles = reclaimedFiles;
+			this.unmappedBlocks = unmappedBlocks;
+			this.meanLatencyMillis = meanLatencyMillis;
+			this.maxLatencyMillis = maxLatencyMillis;
+			this.checkpointFailures = checkpointFailures;
+			this.checkpointError = checkpointError;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("(Pending:%d files/%d mappings, Reclaimed:%d files/%d blocks, Latency:%dms mean/%dms max, CheckpointFailures:%d, Error:%s)", 
+					pendingFiles, pendingMappings, reclaimedFiles, unmappedBlocks, meanLatencyMillis, maxLatencyMillis, checkpointFailures, checkpointError);
+		}
+	}
+
+	/** 
+	 * @return counters, latencies and space accounting for the factory, all kept as it runs, so this is cheap 
+	 * enough to poll in production
+	 */
+	public MetricsReport metrics() {
+		long lwm = lowWatermark.get(), hwm = highWatermark.get(), live = liveBytes.sum();
+		return new MetricsReport(
+				writeLatency.snapshot(),
+				writtenBytes.sum(),
+				readLatency.snapshot(),
+				mapLatency.snapshot(),
+				forceLatency.snapshot(),
+				syncLatency.snapshot(),
+				lwm,
+				hwm,
+				live,
+				Math.max(0, hwm - lwm - live),
+				blocks.size(),
+				reclaimQueue.size());
+	}
+
+	public static final class MetricsReport {
+		/** 
+		 * every set, append, write() and createAddressables() call, not counting time spent throttled by 
+		 * admission control 
+		 */
+		public final LatencyHistogram.Snapshot writes;
+		/** bytes written, headers included */
+		public final long writtenBytes;
+		/** every get(), gather(), read() and chunk from chunks() */
+		public final LatencyHistogram.Snapshot reads;
+		/** extending and mapping a block that was not mapped */
+		public final LatencyHistogram.Snapshot mappings;
+		/** forcing the dirty range of one block */
+		public final LatencyHistogram.Snapshot forces;
+		/** whole flushes, from sync(), durable(), group commit and close() */
+		public final LatencyHistogram.Snapshot syncs;
+		public final long lowWatermark;
+		public final long highWatermark;
+		/** bytes of slices with a reference count above 0 */
+		public final long liveBytes;
+		/** bytes between the watermarks that are not live: garbage the low watermark has yet to pass, and unused space */
+		public final long deadBytes;
+		public final long mappedBlocks;
+		/** files the low watermark has passed that are not yet deleted */
+		public final long pendingDeletions;
+
+		MetricsReport(LatencyHistogram.Snapshot writes, long writtenBytes, LatencyHistogram.Snapshot reads, LatencyHistogram.Snapshot mappings,
+				LatencyHistogram.Snapshot forces, LatencyHistogram.Snapshot syncs, long lowWatermark, long highWatermark, 
+				long liveBytes, long deadBytes, long mappedBlocks, long pendingDeletions) {
+			this.writes = writes;
+			this.writtenBytes = writtenBytes;
+			this.reads = reads;
+			this.mappings = mappings;
+			this.forces = forces;
+			this.syncs = syncs;
+			this.lowWatermark = lowWatermark;
+			this.highWatermark = highWatermark;
+			this.liveBytes = liveBytes;
+			this.deadBytes = deadBytes;
+			this.mappedBlocks = mappedBlocks;
+			this.pendingDeletions = pendingDeletions;
+		}
+
+		/** how far the low watermark trails the high one. a lag that only grows means something is pinning it */
+		public long watermarkLag() {
+			return highWatermark - lowWatermark;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("(Writes:%s, Written:%d bytes, Reads:%s, Mappings:%s, Forces:%s, Syncs:%s, LWM:%d, HWM:%d, Lag:%d bytes, Live:%d bytes, Dead:%d bytes, Mapped:%d blocks, PendingDeletions:%d files)",
+					writes, writtenBytes, reads, mappings, forces, syncs, lowWatermark, highWatermark, watermarkLag(), liveBytes, deadBytes, mappedBlocks, pendingDeletions);
 		}
-	};
+	}
 
 	
+	/**
+	 * Closes the factory, letting go of every block. With explicit unmapping they are unmapped there and then; 
+	 * otherwise views returned by get() keep their blocks mapped until they are collected.
+	 */
 	@Override
 	public void close() throws IOException {
-		closeLock.writeLock().lock();
-		try {
+		synchronized(closeMonitor) {
 			if (closed) return;
-			if (active) {
-				sync();
-				files.values().parallelStream().forEach(raf-> { try { raf.close(); } catch (IOException e) {} });
+			closing = true;
+			try {
+				// wait out anything that got in before the door closed
+				while (operations[0].sum() + operations[1].sum() != 0)
+					Thread.yield();
+				if (active) {
+					guarded(()->{
+						retireReservations();
+						checkpointRefCounts();
+						flush();
+						forceBlocks();
+						synchronized(cleanupMonitor) {
+							writeCheckpoint();
+						}
+						return null;
+					});
+					active = false;
+					synchronized(cleanupMonitor) {
+						cleanupMonitor.notifyAll();
+					}
+					cleanerThread.join();
+					if (compactorThread != null) {
+						compactorThread.interrupt();
+						compactorThread.join();
+					}
+					if (preallocatorThread != null) {
+						preallocatorThread.interrupt();
+						preallocatorThread.join();
+					}
+					if (flusherThread != null) {
+						flusherThread.interrupt();
+						flusherThread.join();
+					}
+					if (replication != null)
+						replication.close();
+					files.values().parallelStream().forEach(this::closeFiles);
+					files.clear();
+				}
+				// nothing is running any more, so every mapping can go, and with them the passed files
+				blocks.forEach((blockNumber, mapping)->retire(blockNumber, mapping));
 				blocks.clear();
-				files.clear();
-				active = false;
-				synchronized(cleanupMonitor) {
-					cleanupMonitor.notifyAll();
+				Retired r;
+				while (null != (r = retired.poll())) {
+					unmap(r.buffer);
+					unmappedBlocks.incrementAndGet();
 				}
-				cleanerThread.join();
+				reclaim();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} finally {
+				closed = true;
 			}
-		} catch (InterruptedException e) {
-			throw new IOException(e);
-		} finally {
-			closed = true;
-			closeLock.writeLock().unlock();
 		}
 	}
 
@@ -166,248 +765,2797 @@ public class MemoryMappedAssetFactory implements AssetFactory, Serializable, Clo
 		});
 	}
 		
-	private <T> T whenOpen(Supplier<T> s) {
-		closeLock.readLock().lock();
-		try {
-			if (closed) throw new IllegalStateException("Factory is closed");
+	/*
+	 * operations are counted on a LongAdder rather than a read lock, so that readers on different cores 
+	 * dont fight over a single lock word. close() flips the closing flag and then waits for the count to drain.
+	 */
+	<T> T whenOpen(Supplier<T> s) {
+		return guarded(()->{
+			if (closing) throw new IllegalStateException("Factory is closed");
 			initMeta();
 			return s.get();
+		});
+	}
+
+	/** runs s counted as an operation in the current epoch, so no block it maps is unmapped under it */
+	<T> T guarded(Supplier<T> s) {
+		int e;
+		while (true) {
+			e = epoch;
+			operations[e&1].increment();
+			if (epoch == e) 
+				break;
+			// the epoch moved on while we were getting in, and the reclaimer may not have seen us
+			operations[e&1].decrement();
+		}
+		try {
+			return s.get();
 		} finally { 
-			closeLock.readLock().unlock();
+			operations[e&1].decrement();
+			// the last operation out unmaps whatever it was keeping mapped
+			if (!retired.isEmpty() && System.nanoTime() - nextReclaim >= 0)
+				reclaim();
 		}
 	}
 		
+	/** forces everything written so far to disk */
 	public void sync() {
-		whenOpen(() -> {
-			blocks.values().parallelStream().forEach(mmb -> { synchronized(mmb) {	mmb.force(); } } );
+		whenOpen(this::flush);
+	}
+
+	/**
+	 * Turns on group commit: a background thread forces the dirty ranges every intervalMillis, or sooner once 
+	 * batchSize callers are waiting in durable(). Takes effect when the factory is first used.
+	 */
+	public MemoryMappedAssetFactory withGroupCommit(long intervalMillis, int batchSize) {
+		groupCommitInterval = intervalMillis;
+		groupCommitBatch = Math.max(1, batchSize);
+		return this;
+	}
+
+	/**
+	 * @return a future that completes once everything written before the call is on disk. With group commit 
+	 * on, it completes on the flusher thread, along with every other caller waiting on the same flush. Without 
+	 * it, the flush happens right here.
+	 */
+	public CompletableFuture<Void> durable() {
+		return whenOpen(()->{
+			CompletableFuture<Void> future = new CompletableFuture<Void>();
+			if (flusherThread == null) {
+				flush();
+				future.complete(null);
+				return future;
+			}
+			awaitingFlush.add(future);
+			if (awaitingCount.incrementAndGet() >= groupCommitBatch) {
+				synchronized (flushMonitor) {
+					flushMonitor.notify();
+				}
+			}
+			return future;
 		});
 	}
-	
-	private ByteBuffer assertBlock(int blockNumber) {
-		MappedByteBuffer block;
-		if (null!=(block=blocks.get(blockNumber))) return block; 
-		synchronized(files) {
-			if (null!=(block=blocks.get(blockNumber))) return block;
-			RandomAccessFile file = files.get(blockNumber/40);
+
+	private void flushInBackground() {
+		while (active) {
 			try {
-				if (file == null) 
-					files.put(blockNumber/40,file = new RandomAccessFile(new File(baseFile,Integer.toString(blockNumber/40)), "rw"));
-				long desiredLength = ((long)((blockNumber%40)+1))*BLOCK_MAX;
-				if (file.length()<desiredLength)
-					file.setLength(desiredLength);
-				blocks.put(blockNumber, block = file.getChannel().map(MapMode.READ_WRITE, desiredLength-BLOCK_MAX, BLOCK_MAX));
-			} catch (IOException ioe) {
-				throw new RuntimeException(ioe);
+				synchronized (flushMonitor) {
+					if (awaitingCount.get() < groupCommitBatch)
+						flushMonitor.wait(groupCommitInterval);
+				}
+				whenOpen(this::flush);
+			} catch (InterruptedException | IllegalStateException e) {
+				return;
 			}
 		}
-		return block;
 	}
 
 	/**
-	 * fills a block with the values in the supplied byte buffers
-	 * it is the callers responsibility to acquire the block after writing
-	 * 
-	 * @param byteBuffers
-	 * @return
+	 * forces every dirty range and then completes whoever was waiting when the flush began. anyone who got in 
+	 * the queue had already marked their writes dirty, so the force covers them.
 	 */
-	private long writeSlice(ByteBuffer[] byteBuffers) {
-		int size = 0;
-		for (int i = byteBuffers.length-1; i >=0; i--)
-			size += byteBuffers[i].limit();
-
-		long hwm;
-		int offsetInBlock;
-		int blockNumber;
-		ByteBuffer buffer;
-		synchronized(highWatermark) {
-			hwm = highWatermark.get();
-			offsetInBlock = (int)(hwm%BLOCK_MAX);
-			blockNumber = (int)(hwm/BLOCK_MAX);
-			
-			// ensure space to write meta for 2 records (this one and the next):
-			if (((hwm + size + 16)/BLOCK_MAX)!=blockNumber) {
-				int remaining = BLOCK_MAX - offsetInBlock;
-				ByteBuffer oldBlock = assertBlock(blockNumber);
-				synchronized(oldBlock) {
-					oldBlock.putInt(offsetInBlock, remaining);
-					oldBlock.putInt(offsetInBlock+4,-1);
-				}
-				hwm+=remaining;
-				offsetInBlock = 0;
-				blockNumber+=1;
+	private void flush() {
+		long started = System.nanoTime();
+		flushLock.lock();
+		try {
+			List<CompletableFuture<Void>> waiting = new ArrayList<CompletableFuture<Void>>();
+			CompletableFuture<Void> future;
+			while (null != (future = awaitingFlush.poll())) 
+				waiting.add(future);
+			awaitingCount.addAndGet(-waiting.size());
+			try {
+				dirtyBlocks.entrySet().parallelStream().forEach(entry->{
+					long range = entry.getValue().take();
+					// an evicted block is mapped again to force it, forcing any mapping of a range syncs the file
+					if (range != DirtyRange.CLEAN && entry.getKey() >= lowWatermark.get()/BLOCK_MAX) {
+						long forcing = System.nanoTime();
+						force((MappedByteBuffer)assertBlock(entry.getKey()), (int)(range>>>32), (int)range);
+						forceLatency.since(forcing);
+					}
+				});
+			} catch (RuntimeException e) {
+				waiting.forEach(f->f.completeExceptionally(e));
+				throw e;
 			}
+			waiting.forEach(f->f.complete(null));
+		} finally {
+			flushLock.unlock();
+			syncLatency.since(started);
+		}
+	}
 
-			// write the size and free marker first
-			buffer = assertBlock(blockNumber);
-			synchronized(buffer) {
-				buffer.putInt(offsetInBlock,size+8);
-				buffer.putInt(offsetInBlock+4,0);
+	private static void force(MappedByteBuffer block, int from, int to) {
+		if (FORCE_RANGE != null) {
+			try {
+				FORCE_RANGE.invoke(block, from, to-from);
+				return;
+			} catch (ReflectiveOperationException e) {
 			}
-			
-			// now that state is recoverable, set the highwatermark
-			highWatermark.set(hwm+size+8);
 		}
-		synchronized (buffer) {
-			// write the bytes outside of the HWM access
-			buffer.position(offsetInBlock+8);
-			for (int i=0; i < byteBuffers.length; i++) {
-				byteBuffers[i].position(0);
-				buffer.put(byteBuffers[i]);
-			}
+		block.force();
+	}
+
+	private static Method forceRangeMethod() {
+		try {
+			return MappedByteBuffer.class.getMethod("force", int.class, int.class);
+		} catch (NoSuchMethodException e) {
+			return null;
 		}
-		return hwm;
 	}
 
+	/** notes that length bytes at physicalOffset have been written */
+	private void markDirty(long physicalOffset, int length) {
+		markDirty(dirtyBlocks, physicalOffset, length);
+		if (replication != null)
+			replication.written(physicalOffset, length);
+	}
 
-	private ByteBuffer retrieveSliceAt(long physicalOffset) {
-		if (physicalOffset==0) return EMPTY_BUFFER;
+	void markDirty(Map<Integer, DirtyRange> ranges, long physicalOffset, int length) {
 		int blockNumber = (int)(physicalOffset/BLOCK_MAX);
-		int offsetInBlock = (int) (physicalOffset%BLOCK_MAX);
-		ByteBuffer block = assertBlock(blockNumber);
-		ByteBuffer retVal;
-		int size;
-		synchronized(block) {
-			size = block.getInt(offsetInBlock)-8; 
-			block.position(offsetInBlock+8);
-			retVal = block.slice();
-		}
-		retVal.limit(size);
-		return retVal.asReadOnlyBuffer();
+		DirtyRange range = ranges.get(blockNumber);
+		if (range == null)
+			range = ranges.computeIfAbsent(blockNumber, b->new DirtyRange());
+		int from = (int)(physicalOffset%BLOCK_MAX);
+		range.mark(from, from+length);
 	}
 
-	private void acquireSliceAt(long physicalOffset) {
-		if (physicalOffset==0) return;
-		int blockNumber = (int)(physicalOffset/BLOCK_MAX);
-		int offsetInBlock = (int) (physicalOffset%BLOCK_MAX);
-		ByteBuffer block = assertBlock(blockNumber);
-		synchronized (block) {
-			block.putInt(offsetInBlock+4, block.getInt(offsetInBlock+4)+1 );
+	/**
+	 * the span of a block written since it was last forced, packed as (from << 32 | to). writers mark one of 
+	 * several stripes (picked by thread) so they dont all CAS the same word; take() merges them.
+	 */
+	static final class DirtyRange {
+		static final long CLEAN = ((long)Integer.MAX_VALUE) << 32;
+		private static final int STRIPES = 16;
+		/** a stripe every 8 longs, to keep them on separate cache lines */
+		private final AtomicLongArray stripes = new AtomicLongArray(STRIPES*8);
+
+		DirtyRange() {
+			for (int i = 0; i < STRIPES; i++)
+				stripes.set(i*8, CLEAN);
 		}
-	}
 
-	private void releaseSliceAt(long physicalOffset) {
-		if (physicalOffset==0) return;
-		int blockNumber = (int)(physicalOffset/BLOCK_MAX);
-		int offsetInBlock = (int) (physicalOffset%BLOCK_MAX);
-		ByteBuffer block = assertBlock(blockNumber);
-		int refCount;
-		synchronized (block) {
-			refCount = block.getInt(offsetInBlock+4)-1;
-			block.putInt(offsetInBlock+4, refCount==0?-1:refCount); // 0 is a temporary "dont clean" value
+		void mark(int from, int to) {
+			int i = ((int)Thread.currentThread().getId() & (STRIPES-1)) * 8;
+			while (true) {
+				long range = stripes.get(i);
+				int lo = (int)(range>>>32), hi = (int)range;
+				if (lo <= from && hi >= to)
+					return;
+				if (stripes.compareAndSet(i, range, pack(Math.min(lo, from), Math.max(hi, to))))
+					return;
+			}
+		}
+
+		long take() {
+			int lo = Integer.MAX_VALUE, hi = 0;
+			for (int i = 0; i < STRIPES; i++) {
+				long range = stripes.getAndSet(i*8, CLEAN);
+				lo = Math.min(lo, (int)(range>>>32));
+				hi = Math.max(hi, (int)range);
+			}
+			return pack(lo, hi);
+		}
+
+		private static long pack(int from, int to) {
+			return (((long)from) << 32) | (to & 0xFFFFFFFFL);
 		}
-		if (refCount == 0) 
-			raiseLowWaterMark(physicalOffset);
+	}
+	
+	private void forceBlocks() {
+		blocks.values().parallelStream().forEach(mapping->mapping.buffer.force());
 	}
 
-	private void raiseLowWaterMark(long physicalOffset) {
-		// successively read blocks, as long as their refCounts are < 0, raise the lwm
-		// if you lwm past a file boundary, delete the old file
-		if (watermarkLock.tryLock()) {
-			try {
-				long lwm = lowWatermark.get();
-				while (lwm < highWatermark.get() ) {
-					ByteBuffer block = assertBlock((int) (lwm/BLOCK_MAX));
-					synchronized(block) {
-						if (block.getInt((int) ((lwm % BLOCK_MAX)+4))>=0)
+	/**
+	 * Caps the number of blocks mapped at once. The least recently used blocks beyond the cap are unmapped 
+	 * and mapped again when next needed, and get() returns copies rather than views. 0 (the default) maps 
+	 * every block between the watermarks. Takes effect when the factory is first used.
+	 */
+	public MemoryMappedAssetFactory withMappedWindow(int maxMappedBlocks) {
+		mappedWindow = maxMappedBlocks;
+		return this;
+	}
+
+	/**
+	 * Unmaps blocks as soon as the low watermark has passed them, and at close(), rather than leaving them to 
+	 * the garbage collector, so their files can go straight away even where a mapped file cannot be deleted. 
+	 * get(), chunks(), gather() and read() then return copies rather than views, since reading a view of an 
+	 * unmapped block would crash the process. A mapped window implies this. Takes effect when the factory is 
+	 * first used.
+	 */
+	public MemoryMappedAssetFactory withExplicitUnmap(boolean explicitUnmap) {
+		this.explicitUnmap = explicitUnmap;
+		return this;
+	}
+
+	/** @return true if get() and friends copy, which is what makes it safe to unmap blocks explicitly */
+	private boolean copiesViews() {
+		return mappedWindow > 0 || explicitUnmap;
+	}
+	
+	/** @return how many blocks are mapped right now, not counting evicted ones waiting to be unmapped */
+	public int mappedBlockCount() {
+		return blocks.size();
+	}
+
+	/**
+	 * Warms up the blocks between the low and high watermark as soon as the factory is first used, as 
+	 * warmUp(byteBudget, parallelism) would. Takes effect when the factory is first used.
+	 */
+	public MemoryMappedAssetFactory withWarmUp(long byteBudget, int parallelism) {
+		this.warmUpBudget = byteBudget;
+		this.warmUpParallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * Faults in the pages of up to byteBudget bytes of data, newest first, on parallelism threads, so the 
+	 * first reads after a restart do not take their page faults one at a time. With a mapped window, no more 
+	 * blocks than the window holds are warmed. Progress can be followed through warmUpProgress().
+	 */
+	public CompletableFuture<WarmUpReport> warmUp(long byteBudget, int parallelism) {
+		return whenOpen(()->startWarmUp(byteBudget, parallelism));
+	}
+
+	/** @return how the most recent warm up is going, or null if there has not been one */
+	public WarmUpReport warmUpProgress() {
+		WarmUp current = warmUp;
+		return current == null ? null : current.report();
+	}
+
+	private CompletableFuture<WarmUpReport> startWarmUp(long byteBudget, int parallelism) {
+		// newest first: the ranges to touch, from the high watermark back, until the budget runs out
+		List<long[]> ranges = new ArrayList<long[]>();
+		long lwm = lowWatermark.get();
+		long end = highWatermark.get();
+		long budget = byteBudget;
+		while (end > lwm && budget > 0 && (mappedWindow <= 0 || ranges.size() < mappedWindow)) {
+			long blockStart = ((end-1)/BLOCK_MAX)*BLOCK_MAX;
+			long start = Math.max(Math.max(blockStart, lwm), end - budget);
+			ranges.add(new long[] { start, end });
+			budget -= end - start;
+			end = blockStart;
+		}
+		WarmUp current = new WarmUp(ranges.size(), byteBudget - budget);
+		warmUp = current;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelism), r->{
+			Thread t = new Thread(r, baseFile.getName()+" warm up");
+			t.setDaemon(true);
+			return t;
+		});
+		CompletableFuture<?> [] blocks = new CompletableFuture<?>[ranges.size()];
+		for (int i = 0; i < blocks.length; i++) {
+			long [] range = ranges.get(i);
+			blocks[i] = CompletableFuture.runAsync(()->{
+				try {
+					whenOpen(()->{
+						// the low watermark may have passed it since
+						if (range[1] <= lowWatermark.get())
 							return;
-						lowWatermark.set(lwm=lwm+block.getInt((int) (lwm % BLOCK_MAX)));
-					}
-					// check for crossing a block boundary
-					if ((lwm%BLOCK_MAX)==0) {
-						blocks.remove((int)((lwm/BLOCK_MAX)-1));
-						// additionally check for crossing a file boundary
-						if ((lwm/BLOCK_MAX)%40==0) {
-							synchronized (files) {
-								int fileNum = (int) (((lwm/BLOCK_MAX)/40)-1);
-								RandomAccessFile f = files.remove(fileNum);
-								if (f!=null) {
-									try {
-										f.close();
-										oldFileNumbers.add(fileNum);
-									} catch (Exception e) {
-										throw new RuntimeException(e);
-									}
-								}
-							}
-						}
-					}
+						ByteBuffer block = assertBlock((int)(range[0]/BLOCK_MAX));
+						int from = (int)(range[0]%BLOCK_MAX);
+						int to = from + (int)(range[1]-range[0]);
+						int touched = 0;
+						for (int position = from; position < to; position += 4096)
+							touched += block.get(position);
+						current.touched += touched;
+					});
+					current.warmedBlocks.incrementAndGet();
+					current.warmedBytes.add(range[1]-range[0]);
+				} catch (IllegalStateException closed) {
 				}
-			} finally {
-				watermarkLock.unlock();
-			}
+			}, pool);
 		}
+		return CompletableFuture.allOf(blocks).handle((done, failure)->{
+			pool.shutdown();
+			current.finished = System.currentTimeMillis();
+			return current.report();
+		});
 	}
 
+	/** a warm up in progress */
+	private static final class WarmUp {
+		final int blocks;
+		final long bytes;
+		final long started = System.currentTimeMillis();
+		final AtomicInteger warmedBlocks = new AtomicInteger();
+		final LongAdder warmedBytes = new LongAdder();
+		volatile long finished;
+		/** what was read, only so that the reads cannot be optimized away */
+		volatile int touched;
 
-	private class MemoryMappedAddressable implements Addressable, Serializable {
-		private static final long serialVersionUID = 1L;
-		long physicalOffset = 0L;
-		int size = 0;
-		
-		@Override
-		public void set(ByteBuffer data) {
-			whenOpen(()->{
-				releaseSliceAt(physicalOffset);
-				if (data==null ||data.limit()<=0) {
-					size = 0;
-					physicalOffset = 0L;
-				} else {
-					size = data.limit();
-					physicalOffset = writeSlice(new ByteBuffer [] { data }); 
-					acquireSliceAt(physicalOffset);
-				}
-			});
+		WarmUp(int blocks, long bytes) {
+			this.blocks = blocks;
+			this.bytes = bytes;
 		}
 
-		@Override
-		public void set(Addressable src) {
-			whenOpen(()->{
-				releaseSliceAt(physicalOffset);
-				physicalOffset = ((MemoryMappedAddressable)src).physicalOffset;
-				size = ((MemoryMappedAddressable)src).size;
-				acquireSliceAt(physicalOffset);
-			});
+		WarmUpReport report() {
+			long f = finished;
+			return new WarmUpReport(blocks, bytes, warmedBlocks.get(), warmedBytes.sum(), f != 0, (f != 0 ? f : System.currentTimeMillis()) - started);
 		}
+	}
 
-		@Override
-		public void append(Addressable a) {
-			whenOpen(()->{
-				long [] oldOffsets = { physicalOffset, ((MemoryMappedAddressable)a).physicalOffset };
-				ByteBuffer [] buffers = {
-						retrieveSliceAt(physicalOffset), 
-						retrieveSliceAt(((MemoryMappedAddressable)a).physicalOffset) 
-				};
-				physicalOffset = writeSlice(buffers);
-				size = buffers[0].limit() + buffers[1].limit();
-				releaseSliceAt(oldOffsets[0]);
-				releaseSliceAt(oldOffsets[1]);
-			});
+	public static final class WarmUpReport {
+		/** how much the warm up set out to do */
+		public final int blocks;
+		public final long bytes;
+		/** and how much it has done */
+		public final int warmedBlocks;
+		public final long warmedBytes;
+		public final boolean done;
+		public final long elapsedMillis;
+
+		WarmUpReport(int blocks, long bytes, int warmedBlocks, long warmedBytes, boolean done, long elapsedMillis) {
+			this.blocks = blocks;
+			this.bytes = bytes;
+			this.warmedBlocks = warmedBlocks;
+			this.warmedBytes = warmedBytes;
+			this.done = done;
+			this.elapsedMillis = elapsedMillis;
 		}
 
 		@Override
-		public int size() {
-			return size;
+		public String toString() {
+			return String.format("(Warmed:%d/%d blocks, Warmed:%d/%d bytes, Done:%s, Took:%dms)", warmedBlocks, blocks, warmedBytes, bytes, done, elapsedMillis);
 		}
+	}
 
-		@Override
-		public ByteBuffer get() {
-			return whenOpen(()->{
-				return retrieveSliceAt(physicalOffset);
-			});
+	private ByteBuffer assertBlock(int blockNumber) {
+		Mapping mapping;
+		if (null!=(mapping=blocks.get(blockNumber))) {
+			if (mappedWindow > 0)
+				mapping.lastUsed = System.nanoTime();
+			return mapping.buffer;
+		}
+		MappedByteBuffer block;
+		synchronized(files) {
+			if (null!=(mapping=blocks.get(blockNumber))) return mapping.buffer;
+			RandomAccessFile [] stripes = files.computeIfAbsent(blockNumber/40, fn->new RandomAccessFile[dataDirs.length]);
+			int stripe = blockNumber%dataDirs.length;
+			RandomAccessFile file = stripes[stripe];
+			try {
+				if (file == null) 
+					stripes[stripe] = file = new RandomAccessFile(stripeFile(stripe, blockNumber/40), "rw");
+				long position = positionInFile(blockNumber);
+				long started = System.nanoTime();
+				if (file.length()<position+BLOCK_MAX)
+					file.setLength(position+BLOCK_MAX);
+				blocks.put(blockNumber, mapping = new Mapping(block = file.getChannel().map(MapMode.READ_WRITE, position, BLOCK_MAX)));
+				mapLatency.since(started);
+			} catch (IOException ioe) {
+				throw new RuntimeException(ioe);
+			}
+			if (mappedWindow > 0) {
+				mapping.lastUsed = System.nanoTime();
+				evictColdBlocks();
+			}
 		}
+		return block;
+	}
 
-		@Override
-		public AssetFactory factory() {
-			return MemoryMappedAssetFactory.this;
+	/** drops the least recently used blocks until only mappedWindow are left. called holding files. */
+	private void evictColdBlocks() {
+		while (blocks.size() > mappedWindow) {
+			Map.Entry<Integer, Mapping> coldest = null;
+			for (Map.Entry<Integer, Mapping> entry: blocks.entrySet())
+				if (coldest == null || entry.getValue().lastUsed < coldest.getValue().lastUsed)
+					coldest = entry;
+			if (blocks.remove(coldest.getKey(), coldest.getValue()))
+				retire(coldest.getKey(), coldest.getValue());
 		}
-		
 	}
-	
-	
-	@Override
+
+	private void retire(int blockNumber, Mapping mapping) {
+		retired.add(new Retired(blockNumber, mapping.buffer, epoch, System.nanoTime()));
+	}
+
+	/**
+	 * unmaps whatever was retired before the current epoch, once the operations from before the current 
+	 * epoch have all finished, and then starts a new epoch. nothing ever waits here; if the old operations 
+	 * are still running the mappings are left for next time. called holding reclaimLock.
+	 */
+	private void reclaimRetired() {
+		int e = epoch;
+		if (operations[(e+1)&1].sum() != 0)
+			return;
+		quiescentEpoch = e;
+		long now = System.nanoTime(), next = Long.MAX_VALUE;
+		for (Retired r: retired) {
+			if (r.epoch < e && now - r.notBefore >= 0) {
+				unmap(r.buffer);
+				retired.remove(r);
+				unmappedBlocks.incrementAndGet();
+			} else if (r.notBefore - now > 0) {
+				next = Math.min(next, r.notBefore);
+			}
+		}
+		nextReclaim = next == Long.MAX_VALUE ? now : next;
+		epoch = e+1;
+	}
+
+	private static final class Mapping {
+		final MappedByteBuffer buffer;
+		volatile long lastUsed;
+		Mapping(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	private static final class Retired {
+		final int blockNumber;
+		final MappedByteBuffer buffer;
+		final int epoch;
+		final long notBefore;
+		Retired(int blockNumber, MappedByteBuffer buffer, int epoch, long notBefore) {
+			this.blockNumber = blockNumber;
+			this.buffer = buffer;
+			this.epoch = epoch;
+			this.notBefore = notBefore;
+		}
+	}
+
+	/** 
+	 * releases a mapping now rather than when the buffer is collected. leaves it to the collector if the 
+	 * runtime wont let us, or if get() may have handed out views of it.
+	 */
+	private void unmap(MappedByteBuffer buffer) {
+		if (copiesViews())
+			DirectBuffers.free(buffer);
+	}
+
+	File stripeFile(int stripe, int fileNumber) {
+		return new File(dataDirs[stripe], Integer.toString(fileNumber));
+	}
+
+	/** where a block starts within the file of its stripe */
+	private long positionInFile(int blockNumber) {
+		return positionInFile(blockNumber, dataDirs.length, BLOCK_MAX);
+	}
+
+	static long positionInFile(int blockNumber, int stripes, int blockMax) {
+		return ((long)((blockNumber%40)/stripes))*blockMax;
+	}
+
+	private void closeFiles(RandomAccessFile [] stripes) {
+		for (RandomAccessFile raf: stripes) {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * fills a block with the values in the supplied byte buffers
+	 * it is the callers responsibility to acquire the block after writing
+	 * 
+	 * @param byteBuffers
+	 * @return
+	 */
+	private long writeSlice(ByteBuffer[] byteBuffers) {
+		return writeSlice(byteBuffers, 0);
+	}
+
+	/** writeSlice, with an extended header carrying flags when they are not 0 */
+	private long writeSlice(ByteBuffer[] byteBuffers, int flags) {
+		return writeSlice(byteBuffers, flags, 0);
+	}
+
+	/** writeSlice, never reusing a hole below avoidBelow */
+	private long writeSlice(ByteBuffer[] byteBuffers, int flags, long avoidBelow) {
+		int headerSize = flags == 0 ? 8 : 12;
+		int size = 0;
+		for (int i = byteBuffers.length-1; i >=0; i--)
+			size += byteBuffers[i].limit();
+
+		long physicalOffset = allocate(size+headerSize, avoidBelow);
+
+		// the header is already in place, so the bytes can go in without holding anything
+		ByteBuffer target = assertBlock((int)(physicalOffset/BLOCK_MAX)).duplicate();
+		int offsetInBlock = (int)(physicalOffset%BLOCK_MAX);
+		if (flags != 0) {
+			target.putInt(offsetInBlock, (size+headerSize) | EXTENDED);
+			target.putInt(offsetInBlock+8, flags);
+		}
+		target.position(offsetInBlock+headerSize);
+		for (int i=0; i < byteBuffers.length; i++) {
+			ByteBuffer source = byteBuffers[i].duplicate();
+			source.position(0);
+			target.put(source);
+		}
+		markDirty(physicalOffset, size+headerSize);
+		writtenBytes.add(size+headerSize);
+		return physicalOffset;
+	}
+
+	/** the size of a slice (header included) from the first word of its header */
+	private static int sizeOf(int header) {
+		return header & ~EXTENDED;
+	}
+
+	private int flagsAt(long physicalOffset) {
+		ByteBuffer block = assertBlock((int)(physicalOffset/BLOCK_MAX));
+		int offsetInBlock = (int)(physicalOffset%BLOCK_MAX);
+		return block.getInt(offsetInBlock) < 0 ? block.getInt(offsetInBlock+8) : 0;
+	}
+
+	/** the most data a single slice can hold */
+	private int maxSlicePayload() {
+		return BLOCK_MAX - 16;
+	}
+
+	/**
+	 * writes every buffer as one or more chunks (a chunk never spans buffers, so there is never more than one 
+	 * buffer of data in hand) and then a manifest for them. like writeSlice, the caller acquires the manifest.
+	 */
+	private long writeChunked(Iterator<ByteBuffer> data) {
+		List<long[]> chunks = new ArrayList<long[]>();
+		long length = 0;
+		while (data.hasNext()) {
+			ByteBuffer buffer = data.next().duplicate();
+			buffer.position(0);
+			while (buffer.hasRemaining()) {
+				int piece = Math.min(buffer.remaining(), maxSlicePayload());
+				ByteBuffer chunk = buffer.slice();
+				chunk.limit(piece);
+				chunks.add(new long[] { writeValue(new ByteBuffer[] { chunk }), piece });
+				buffer.position(buffer.position()+piece);
+				length += piece;
+			}
+		}
+		long physicalOffset = writeManifest(chunks);
+		// only now that the manifest is down do the chunks become live
+		for (long [] chunk: chunks)
+			acquireSliceAt(chunk[0]);
+		return physicalOffset;
+	}
+
+	/** writes a manifest of (offset, length) entries. the caller sees to the references. */
+	private long writeManifest(List<long[]> entries) {
+		if (12L + entries.size()*12L > maxSlicePayload()-4)
+			throw new IllegalArgumentException(entries.size()+" chunks do not fit in a manifest in a block of "+BLOCK_MAX+" bytes");
+		long length = 0;
+		for (long [] entry: entries)
+			length += entry[1];
+		ByteBuffer manifest = ByteBuffer.allocate(12 + entries.size()*12);
+		manifest.putLong(length).putInt(entries.size());
+		for (long [] entry: entries)
+			manifest.putLong(entry[0]).putInt((int)Math.min(entry[1], Integer.MAX_VALUE));
+		manifest.flip();
+		return writeSlice(new ByteBuffer[] { manifest }, CHUNKED);
+	}
+
+	private boolean isManifest(long physicalOffset) {
+		return physicalOffset != 0 && (flagsAt(physicalOffset) & CHUNKED) != 0;
+	}
+
+	/**
+	 * appends the data named by tail to the data named by head, as a rope unless the result is under the rope 
+	 * threshold. like writeSlice, the caller acquires the result.
+	 */
+	private long writeAppended(long head, long tail) {
+		long length = lengthAt(head) + lengthAt(tail);
+		if (length <= ropeThreshold && length <= maxSlicePayload()) {
+			List<ByteBuffer> pieces = new ArrayList<ByteBuffer>(piecesAt(head));
+			pieces.addAll(piecesAt(tail));
+			return writeValue(pieces.toArray(new ByteBuffer[pieces.size()]));
+		}
+		List<long[]> entries = new ArrayList<long[]>();
+		if (isManifest(head) && chunksAt(head)[0].length < ROPE_FANOUT) {
+			long [][] chunks = chunksAt(head);
+			for (int i = 0; i < chunks[0].length; i++)
+				entries.add(new long[] { chunks[0][i], lengthAt(resolve(chunks[0][i])) });
+		} else if (head != 0) {
+			entries.add(new long[] { head, lengthAt(head) });
+		}
+		if (tail != 0)
+			entries.add(new long[] { tail, lengthAt(tail) });
+		// take the references first, and record where they were actually taken, in case something has moved
+		for (long [] entry: entries)
+			entry[0] = acquireSliceAt(entry[0]);
+		return writeManifest(entries);
+	}
+
+	/**
+	 * Copies the data of a rope (or anything else stored in pieces) into as few chunks as possible, so reading 
+	 * it no longer has to walk the pieces. 
+	 */
+	public void flatten(Addressable a) {
+		whenOpen(()->{
+			MemoryMappedAddressable addressable = (MemoryMappedAddressable)a;
+			long old = addressable.current();
+			if (!isManifest(old))
+				return;
+			long target = Math.min(maxSlicePayload(), 4*1024*1024);
+			List<long[]> chunks = new ArrayList<long[]>();
+			List<ByteBuffer> gathered = new ArrayList<ByteBuffer>();
+			long gatheredLength = 0;
+			for (ByteBuffer piece: piecesAt(old)) {
+				piece = piece.duplicate();
+				while (piece.hasRemaining()) {
+					ByteBuffer part = piece.slice();
+					part.limit((int)Math.min(part.limit(), target - gatheredLength));
+					gathered.add(part);
+					gatheredLength += part.limit();
+					piece.position(piece.position()+part.limit());
+					if (gatheredLength == target) {
+						chunks.add(new long[] { writeValue(gathered.toArray(new ByteBuffer[gathered.size()])), gatheredLength });
+						gathered.clear();
+						gatheredLength = 0;
+					}
+				}
+			}
+			if (gatheredLength > 0)
+				chunks.add(new long[] { writeValue(gathered.toArray(new ByteBuffer[gathered.size()])), gatheredLength });
+			long written;
+			if (chunks.size() == 1) {
+				written = chunks.get(0)[0];
+			} else {
+				written = writeManifest(chunks);
+				for (long [] chunk: chunks)
+					acquireSliceAt(chunk[0]);
+			}
+			addressable.physicalOffset = acquireSliceAt(written);
+			releaseSliceAt(old);
+		});
+	}
+
+	/**
+	 * Appends that come to no more than thresholdBytes are copied into a single slice, while longer ones are 
+	 * joined as ropes without copying. The default is 1k. Takes effect when the factory is first used.
+	 */
+	public MemoryMappedAssetFactory withRopeThreshold(int thresholdBytes) {
+		ropeThreshold = thresholdBytes;
+		return this;
+	}
+
+	/** the total length of the data named by physicalOffset */
+	private long lengthAt(long physicalOffset) {
+		if (physicalOffset == 0)
+			return 0;
+		int flags = flagsAt(physicalOffset);
+		if ((flags & CHUNKED) != 0)
+			return retrieveSliceAt(physicalOffset).getLong(0);
+		if ((flags & COMPRESSED) != 0)
+			return retrieveSliceAt(physicalOffset).getInt(0);
+		return retrieveSliceAt(physicalOffset).limit();
+	}
+
+	/**
+	 * writes data as a single slice, through the codec when it is at least the threshold and comes out 
+	 * smaller. like writeSlice, the caller acquires it.
+	 */
+	private long writeValue(ByteBuffer[] data) {
+		int length = 0;
+		for (ByteBuffer buffer: data)
+			length += buffer.limit();
+		if (codec == null || compressionThreshold <= 0 || length < compressionThreshold)
+			return writeSlice(data);
+		ByteBuffer whole;
+		if (data.length == 1) {
+			whole = data[0].duplicate();
+			whole.position(0);
+		} else {
+			whole = ByteBuffer.allocate(length);
+			for (ByteBuffer buffer: data) {
+				ByteBuffer source = buffer.duplicate();
+				source.position(0);
+				whole.put(source);
+			}
+			whole.flip();
+		}
+		// the original length goes in front of the compressed bytes, so with it they have to come to less than length
+		ByteBuffer compressed = codec.compress(whole, length-5);
+		if (compressed == null) {
+			incompressibleSlices.increment();
+			return writeSlice(data);
+		}
+		compressedSlices.increment();
+		originalBytes.add(length);
+		storedBytes.add(compressed.remaining()+4);
+		ByteBuffer originalLength = ByteBuffer.allocate(4);
+		originalLength.putInt(length).flip();
+		return writeSlice(new ByteBuffer[] { originalLength, compressed.slice() }, COMPRESSED);
+	}
+
+	/** the data of a single slice, decompressed if it has to be */
+	private ByteBuffer dataAt(long physicalOffset) {
+		ByteBuffer slice = retrieveSliceAt(physicalOffset);
+		if (physicalOffset == 0 || (flagsAt(physicalOffset) & COMPRESSED) == 0)
+			return slice;
+		if (codec == null)
+			throw new IllegalStateException("A compressed slice needs the codec it was written with");
+		int length = slice.getInt(0);
+		slice.position(4);
+		return codec.decompress(slice.slice(), length).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Compresses slices of at least thresholdBytes with codec, when it makes them smaller. Slices already 
+	 * written stay as they are. The codec cannot be changed once something has been compressed with it, but 
+	 * a threshold of 0 turns compression off for new writes. Takes effect when the factory is first used.
+	 */
+	public MemoryMappedAssetFactory withCompression(int thresholdBytes, Codec codec) {
+		this.compressionThreshold = thresholdBytes;
+		this.codec = codec;
+		return this;
+	}
+
+	/** compression with a DeflateCodec at its fastest level */
+	public MemoryMappedAssetFactory withCompression(int thresholdBytes) {
+		return withCompression(thresholdBytes, new DeflateCodec());
+	}
+
+	/** @return what compression has done since the factory was opened */
+	public CompressionReport compressionStats() {
+		return new CompressionReport(compressedSlices.sum(), incompressibleSlices.sum(), originalBytes.sum(), storedBytes.sum());
+	}
+
+	/** what compression has achieved */
+	public static final class CompressionReport {
+		public final long compressedSlices;
+		/** slices over the threshold that did not get any smaller */
+		public final long incompressibleSlices;
+		public final long originalBytes;
+		public final long storedBytes;
+
+		CompressionReport(long compressedSlices, long incompressibleSlices, long originalBytes, long storedBytes) {
+			this.compressedSlices = compressedSlices;
+			this.incompressibleSlices = incompressibleSlices;
+			this.originalBytes = originalBytes;
+			this.storedBytes = storedBytes;
+		}
+
+		/** original over stored bytes, of the slices that were compressed */
+		public double ratio() {
+			return storedBytes == 0 ? 1.0 : ((double)originalBytes)/storedBytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("(Compressed:%d slices, Incompressible:%d slices, Original:%d bytes, Stored:%d bytes, Ratio:%.2f)", 
+					compressedSlices, incompressibleSlices, originalBytes, storedBytes, ratio());
+		}
+	}
+
+	/**
+	 * Shares a slice already holding the same bytes, rather than writing another copy, whenever a whole value 
+	 * is set. Takes effect when the factory is first used.
+	 */
+	public MemoryMappedAssetFactory withDeduplication(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+		return this;
+	}
+
+	/**
+	 * writes data as a single slice and acquires it, or with deduplication on, acquires a live slice that 
+	 * already holds the same bytes if there is one.
+	 */
+	private long writeShared(ByteBuffer data) {
+		if (!deduplicate)
+			return acquireSliceAt(writeValue(new ByteBuffer [] { data }));
+		long fingerprint = fingerprint(data);
+		Long existing = fingerprints.get(fingerprint);
+		if (existing != null) {
+			long shared = tryShare(existing, data, fingerprint);
+			if (shared != 0) {
+				sharedSlices.increment();
+				sharedBytes.add(data.limit());
+				return shared;
+			}
+		}
+		long written = acquireSliceAt(writeValue(new ByteBuffer [] { data }));
+		fingerprintsByOffset.put(written, fingerprint);
+		fingerprints.put(fingerprint, written);
+		return written;
+	}
+
+	/** @return the slice at physicalOffset, acquired, if it is still live and holds data, otherwise 0 */
+	private long tryShare(long physicalOffset, ByteBuffer data, long fingerprint) {
+		physicalOffset = resolve(physicalOffset);
+		if (physicalOffset < lowWatermark.get())
+			return 0;
+		ByteBuffer block = assertBlock((int)(physicalOffset/BLOCK_MAX));
+		int offsetInBlock = (int)(physicalOffset%BLOCK_MAX);
+		int size;
+		synchronized (headerLock(physicalOffset)) {
+			if (refCountAt(physicalOffset, block, offsetInBlock) <= 0)
+				return 0;
+			size = block.getInt(offsetInBlock);
+		}
+		// a live slice never changes, so its bytes can be compared without holding anything
+		ByteBuffer expected = data.duplicate();
+		expected.position(0);
+		if (!expected.equals(dataAt(physicalOffset)))
+			return 0;
+		synchronized (headerLock(physicalOffset)) {
+			// it may have been released since, and with hole reuse, something else written in its place. the 
+			// fingerprint only goes back on the offset once whatever is there now has been written whole.
+			int refCount = refCountAt(physicalOffset, block, offsetInBlock);
+			if (refCount <= 0 || block.getInt(offsetInBlock) != size 
+					|| !Long.valueOf(fingerprint).equals(fingerprintsByOffset.get(physicalOffset)))
+				return 0;
+			putRefCount(physicalOffset, block, offsetInBlock, refCount, refCount+1);
+		}
+		return physicalOffset;
+	}
+
+	/** drops a slice that has lost its last reference from the fingerprint index */
+	private void unfingerprint(long physicalOffset) {
+		Long fingerprint = fingerprintsByOffset.remove(physicalOffset);
+		if (fingerprint != null)
+			fingerprints.remove(fingerprint, physicalOffset);
+	}
+
+	/** points the fingerprint index at where the compactor moved a slice to */
+	private void refingerprint(long from, long to) {
+		Long fingerprint = fingerprintsByOffset.remove(from);
+		if (fingerprint != null) {
+			fingerprintsByOffset.put(to, fingerprint);
+			fingerprints.replace(fingerprint, from, to);
+		}
+	}
+
+	/** a 64 bit hash of the bytes of data, which is only ever used to find candidates worth comparing */
+	private static long fingerprint(ByteBuffer data) {
+		long h = 0xCBF29CE484222325L ^ data.limit();
+		int i = 0;
+		for (; i + 8 <= data.limit(); i += 8)
+			h = (h ^ data.getLong(i)) * 0x9E3779B97F4A7C15L;
+		for (; i < data.limit(); i++)
+			h = (h ^ data.get(i)) * 0x100000001B3L;
+		return h ^ (h >>> 29);
+	}
+
+	/** @return how much deduplication has saved so far */
+	public DeduplicationReport deduplicationStats() {
+		return new DeduplicationReport(sharedSlices.sum(), sharedBytes.sum(), fingerprints.size());
+	}
+
+	public static final class DeduplicationReport {
+		/** writes that shared an existing slice instead */
+		public final long sharedSlices;
+		public final long sharedBytes;
+		/** live slices that can currently be shared */
+		public final long indexedSlices;
+
+		DeduplicationReport(long sharedSlices, long sharedBytes, long indexedSlices) {
+			this.sharedSlices = sharedSlices;
+			this.sharedBytes = sharedBytes;
+			this.indexedSlices = indexedSlices;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("(Shared:%d slices, Shared:%d bytes, Indexed:%d slices)", sharedSlices, sharedBytes, indexedSlices);
+		}
+	}
+
+	/** @return the offsets (first) and lengths (second) of the chunks of a manifest */
+	private long [][] chunksAt(long physicalOffset) {
+		ByteBuffer manifest = retrieveSliceAt(physicalOffset);
+		int count = manifest.getInt(8);
+		long [][] chunks = { new long[count], new long[count] };
+		for (int i = 0; i < count; i++) {
+			chunks[0][i] = manifest.getLong(12+i*12);
+			chunks[1][i] = manifest.getInt(20+i*12);
+		}
+		return chunks;
+	}
+
+	/** views of the pieces of the data named by physicalOffset, in order */
+	private List<ByteBuffer> piecesAt(long physicalOffset) {
+		if (!isManifest(physicalOffset))
+			return Collections.singletonList(dataAt(physicalOffset));
+		List<ByteBuffer> pieces = new ArrayList<ByteBuffer>();
+		for (Leaves leaves = new Leaves(physicalOffset); leaves.hasNext(); ) {
+			long [] leaf = leaves.next();
+			pieces.add(chunkAt(leaf[0], (int)leaf[1]));
+		}
+		return pieces;
+	}
+
+	/**
+	 * walks the tree of manifests under a rope, giving the (offset, length) of each plain slice in order. 
+	 * the walk keeps its own stack, since ropes can be deep. it must be used inside an operation.
+	 */
+	private class Leaves implements Iterator<long[]> {
+		private final ArrayDeque<long[][]> manifests = new ArrayDeque<long[][]>();
+		private final ArrayDeque<int[]> positions = new ArrayDeque<int[]>();
+		private long [] next;
+
+		Leaves(long physicalOffset) {
+			if (isManifest(physicalOffset)) {
+				manifests.push(chunksAt(physicalOffset));
+				positions.push(new int[1]);
+			} else if (physicalOffset != 0) {
+				next = new long[] { physicalOffset, lengthAt(physicalOffset) };
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && !manifests.isEmpty()) {
+				long [][] manifest = manifests.peek();
+				int [] position = positions.peek();
+				if (position[0] >= manifest[0].length) {
+					manifests.pop();
+					positions.pop();
+					continue;
+				}
+				long entry = resolve(manifest[0][position[0]]);
+				long length = manifest[1][position[0]];
+				position[0]++;
+				if (isManifest(entry)) {
+					manifests.push(chunksAt(entry));
+					positions.push(new int[1]);
+				} else {
+					next = new long[] { entry, length };
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public long[] next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			long [] leaf = next;
+			next = null;
+			return leaf;
+		}
+	}
+
+	private static ByteBuffer copyOf(ByteBuffer view) {
+		ByteBuffer copy = ByteBuffer.allocate(view.remaining());
+		copy.put(view.duplicate()).flip();
+		return copy.asReadOnlyBuffer();
+	}
+
+	private static Iterator<ByteBuffer> prepend(ByteBuffer first, Iterator<ByteBuffer> rest) {
+		return new Iterator<ByteBuffer>() {
+			boolean atFirst = true;
+			@Override
+			public boolean hasNext() {
+				return atFirst || rest.hasNext();
+			}
+			@Override
+			public ByteBuffer next() {
+				if (atFirst) {
+					atFirst = false;
+					return first;
+				}
+				return rest.next();
+			}
+		};
+	}
+
+	private ByteBuffer chunkAt(long physicalOffset, int length) {
+		ByteBuffer chunk = dataAt(resolve(physicalOffset));
+		chunk.limit(length);
+		return chunk;
+	}
+
+	/**
+	 * claims length bytes (header included) and writes a header with a reference count of 0 for them.
+	 * small slices come out of the calling threads reservation; when that is too small a new one is claimed 
+	 * from the high watermark, and whichever of the two has more room left is kept.
+	 */
+	private long allocate(int length, long avoidBelow) {
+		if (reusesHoles()) {
+			long hole = takeHole(length, avoidBelow);
+			if (hole >= 0)
+				return hole;
+		}
+		Reservation current = reservation.get();
+		long physicalOffset = current == null ? -1 : current.tryAllocate(length);
+		if (physicalOffset >= 0) 
+			return physicalOffset;
+
+		Reservation fresh = reserve(length);
+		physicalOffset = fresh.tryAllocate(length);
+		keepBetter(current, fresh);
+		return physicalOffset;
+	}
+
+	/**
+	 * Reuses the space of released slices for new ones of about the same size, instead of always writing at 
+	 * the high watermark, so that with mixed lifetimes the files grow with the live data rather than with 
+	 * everything ever written. After recover(), nothing below the recovered high watermark is reused: space 
+	 * released there only comes back once the low watermark has passed it. Only takes effect along with 
+	 * explicit unmapping or a mapped window, since a view from get() would show whatever was written over 
+	 * the space it looks at. Takes effect when the factory is first used.
+	 */
+	public MemoryMappedAssetFactory withHoleReuse(boolean reuseHoles) {
+		this.reuseHoles = reuseHoles;
+		return this;
+	}
+
+	/** 
+	 * offers the space of a slice that has just lost its last reference for reuse. below where recovery 
+	 * stopped, the low watermark takes any slice with a count of 0 for a write that died in the crash (the 
+	 * checkpoint does not know where writes into holes were), so a write in progress there would be thrown 
+	 * away. space released there is dropped, and no holes are rebuilt from the recovery scan, for the same 
+	 * reason.
+	 */
+	private void addHole(long physicalOffset, int size, int epoch) {
+		if (physicalOffset < recoveredHighWatermark)
+			return;
+		holes.add(physicalOffset, size, epoch);
+	}
+
+	/**
+	 * claims a hole for a slice of length bytes (header included), and writes a header with a reference count 
+	 * of 0, just as allocate does. holes are only reused once every operation that might still be reading the 
+	 * old slice has finished, moving the epoch on if that is what it waits for. holes below avoidBelow (in a 
+	 * file the compactor is emptying) are dropped.
+	 * @return the offset of the slice, or -1 if there is no hole that will do
+	 */
+	private long takeHole(int length, long avoidBelow) {
+		return holes.take(length, this::quiesce, hole->claimHole(hole, length, avoidBelow));
+	}
+
+	/** @return true if the hole is still free, having cut it down to length bytes */
+	private boolean claimHole(HoleLists.Hole hole, int length, long avoidBelow) {
+		if (hole.physicalOffset < Math.max(lowWatermark.get(), avoidBelow))
+			return false;
+		int rest = hole.size - length;
+		ByteBuffer block = assertBlock((int)(hole.physicalOffset/BLOCK_MAX));
+		int offsetInBlock = (int)(hole.physicalOffset%BLOCK_MAX);
+		synchronized (headerLock(hole.physicalOffset)) {
+			if (hole.physicalOffset < lowWatermark.get() 
+					|| sizeOf(block.getInt(offsetInBlock)) != hole.size 
+					|| refCountAt(hole.physicalOffset, block, offsetInBlock) != -1)
+				return false;
+			// the header of whatever is left goes in first, so the headers are walkable at every step
+			if (rest > 0) {
+				block.putInt(offsetInBlock+length, rest);
+				block.putInt(offsetInBlock+length+4, -1);
+				markDirty(hole.physicalOffset+length, 8);
+			}
+			block.putInt(offsetInBlock, length);
+			putRefCount(hole.physicalOffset, block, offsetInBlock, -1, 0);
+		}
+		return true;
+	}
+
+	/** 
+	 * @return true if every operation from epoch and before is known to have finished, trying to move the 
+	 * epoch on, without waiting, if not yet.
+	 */
+	private boolean quiesce(int epoch) {
+		if (epoch - quiescentEpoch < 0)
+			return true;
+		if (reclaimLock.tryLock()) {
+			try {
+				reclaimRetired();
+			} finally {
+				reclaimLock.unlock();
+			}
+		}
+		return epoch - quiescentEpoch < 0;
+	}
+
+	/** @return how much space has been reused, and how much is waiting to be */
+	public HoleReport holeStats() {
+		return holes.report();
+	}
+
+	public static final class HoleReport {
+		public final long reusedSlices;
+		public final long reusedBytes;
+		/** holes waiting to be reused, some of which the low watermark may already have passed */
+		public final long freeHoles;
+		public final long freeBytes;
+
+		HoleReport(long reusedSlices, long reusedBytes, long freeHoles, long freeBytes) {
+			this.reusedSlices = reusedSlices;
+			this.reusedBytes = reusedBytes;
+			this.freeHoles = freeHoles;
+			this.freeBytes = freeBytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("(Reused:%d slices, Reused:%d bytes, Free:%d holes, Free:%d bytes)", reusedSlices, reusedBytes, freeHoles, freeBytes);
+		}
+	}
+
+	/** keeps whichever of the calling threads reservation and a fresh one has more room, and retires the other */
+	private void keepBetter(Reservation current, Reservation fresh) {
+		if (current == null || fresh.remaining() > current.remaining()) {
+			if (current != null)
+				current.retire();
+			activeReservations.add(fresh);
+			reservation.set(fresh);
+		} else {
+			fresh.retire();
+		}
+	}
+
+	/**
+	 * claims a new reservation of at least length+8 bytes from the high watermark. the end of the reservation 
+	 * is rounded up to a multiple of the reservation size (or the end of the block). 
+	 */
+	private Reservation reserve(int length) {
+		assertWritable();
+		if (((long)length)+8 > BLOCK_MAX)
+			throw new IllegalArgumentException("A slice of "+(length-8)+" bytes does not fit in a block of "+BLOCK_MAX+" bytes");
+		while (true) {
+			long hwm = highWatermark.get();
+			long blockStart = hwm - (hwm%BLOCK_MAX);
+			long blockEnd = blockStart + BLOCK_MAX;
+
+			// not enough room for this and the next header, so turn the rest of the block into garbage and move on:
+			if (hwm + length + 8 > blockEnd) {
+				if (highWatermark.compareAndSet(hwm, blockEnd)) {
+					ByteBuffer oldBlock = assertBlock((int)(blockStart/BLOCK_MAX));
+					oldBlock.putInt((int)(hwm-blockStart), (int)(blockEnd-hwm));
+					oldBlock.putInt((int)(hwm-blockStart)+4, -1);
+					markDirty(hwm, 8);
+					if (preallocatorThread != null) {
+						synchronized (preallocationMonitor) {
+							preallocationMonitor.notify();
+						}
+					}
+				}
+				continue;
+			}
+
+			long end = blockStart + (((hwm - blockStart + length + 8 + reservationSize - 1)/reservationSize)*reservationSize);
+			if (blockEnd - end < 8) 
+				end = blockEnd;
+			if (highWatermark.compareAndSet(hwm, end))
+				return new Reservation((int)(blockStart/BLOCK_MAX), blockStart, hwm, end);
+		}
+	}
+
+	/** 
+	 * retires every outstanding reservation, turning their unused tails into garbage so the low watermark 
+	 * can move past them. threads that lose their reservation simply claim a new one. 
+	 */
+	private void retireReservations() {
+		for (Reservation r: activeReservations) {
+			long start = r.cursor.get();
+			r.retire();
+			raiseLowWaterMark(start);
+		}
+	}
+
+	/**
+	 * Sets how often the cleaner sweeps for reservations that nothing has been allocated from since its last 
+	 * sweep, and retires them: 10 seconds by default. Until then the unused tail of an idle writer's 
+	 * reservation holds the low watermark, and every file after it. Takes effect when the factory is first 
+	 * used.
+	 */
+	public MemoryMappedAssetFactory withIdleReservationTimeout(long timeoutMillis) {
+		this.idleReservationTimeout = timeoutMillis;
+		return this;
+	}
+
+	private long idleReservationMillis() {
+		return idleReservationTimeout > 0 ? idleReservationTimeout : 10000;
+	}
+
+	/** 
+	 * retires the reservations that nothing was allocated from since the last sweep, so a thread that wrote 
+	 * once and went quiet (or went away) does not hold the low watermark, and every file after it, forever.
+	 */
+	private void retireIdleReservations() {
+		guarded(()->{
+			for (Reservation r: activeReservations) {
+				long cursor = r.cursor.get();
+				if (cursor == r.sweptCursor) {
+					r.retire();
+					raiseLowWaterMark(cursor);
+				} else {
+					r.sweptCursor = cursor;
+				}
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * A run of space inside a single block that one thread bump allocates from. The owning thread moves the
+	 * cursor with a CAS only so that another thread can retire the reservation safely; in the normal case
+	 * nothing else touches it.
+	 */
+	private class Reservation {
+		final int blockNumber;
+		final long blockStart;
+		final long start;
+		final long end;
+		final AtomicLong cursor;
+		/** where the cursor was at the last sweep for idle reservations. only the cleaner touches it */
+		long sweptCursor = -1;
+
+		Reservation(int blockNumber, long blockStart, long start, long end) {
+			this.blockNumber = blockNumber;
+			this.blockStart = blockStart;
+			this.start = start;
+			this.end = end;
+			this.cursor = new AtomicLong(start);
+			putHeader(start, (int)(end-start), 0);
+		}
+
+		long remaining() {
+			return end - cursor.get();
+		}
+
+		/** @return the offset of a slice of length bytes (header included) or -1 if it doesnt fit */
+		long tryAllocate(int length) {
+			long next = cursor.get();
+			if (next + length + 8 > end) 
+				return -1;
+			// the tail header goes in first, so the chain of headers is walkable at every step:
+			putHeader(next+length, (int)(end-next-length), 0);
+			if (!cursor.compareAndSet(next, next+length))
+				return -1;
+			putHeader(next, length, 0);
+			return next;
+		}
+
+		void retire() {
+			long next = cursor.getAndSet(end);
+			if (next < end) 
+				putHeader(next, (int)(end-next), -1);
+			activeReservations.remove(this);
+		}
+
+		private void putHeader(long physicalOffset, int size, int refCount) {
+			// the block is looked up every time, since it may have been evicted in the meantime
+			ByteBuffer block = assertBlock(blockNumber);
+			block.putInt((int)(physicalOffset-blockStart), size);
+			block.putInt((int)(physicalOffset-blockStart)+4, refCount);
+			markDirty(physicalOffset, 8);
+		}
+	}
+
+
+	/** 
+	 * header read-modify-writes are serialized on a lock picked by offset, rather than on the whole block.
+	 * plain reads of the header never need it.
+	 */
+	private RefCountStripe headerLock(long physicalOffset) {
+		long h = physicalOffset * 0x9E3779B97F4A7C15L;
+		return headerLocks[(int)(h >>> 56)];
+	}
+
+	/** the reference count of a slice, from the side table if it is there. called holding its header lock. */
+	private int refCountAt(long physicalOffset, ByteBuffer block, int offsetInBlock) {
+		if (refCountTable) {
+			int refCount = headerLock(physicalOffset).get(physicalOffset);
+			if (refCount != 0)
+				return refCount;
+		}
+		return block.getInt(offsetInBlock+4);
+	}
+
+	/** 
+	 * changes the reference count of a slice from what it was. called holding its header lock. with the side 
+	 * table on, only going live and being forwarded are written to the header.
+	 */
+	private void putRefCount(long physicalOffset, ByteBuffer block, int offsetInBlock, int from, int to) {
+		if ((from > 0) != (to > 0))
+			liveBytes.add(to > 0 ? sizeOf(block.getInt(offsetInBlock)) : -sizeOf(block.getInt(offsetInBlock)));
+		if (refCountTable && from > 0 && to != FORWARDED) {
+			headerLock(physicalOffset).put(physicalOffset, to);
+			return;
+		}
+		if (refCountTable)
+			headerLock(physicalOffset).remove(physicalOffset);
+		block.putInt(offsetInBlock+4, to);
+		markDirty(physicalOffset, 8);
+	}
+
+	/**
+	 * Keeps reference counts that change after a slice is first acquired in memory, writing them back to the 
+	 * slice headers every 10 seconds and at close, instead of into the page on every acquire and release. 
+	 * A crash loses whatever changed since the last write back. Takes effect when the factory is first used.
+	 */
+	public MemoryMappedAssetFactory withRefCountTable(boolean refCountTable) {
+		this.refCountTable = refCountTable;
+		return this;
+	}
+
+	/** writes the side table of reference counts back into the slice headers, and empties it */
+	void checkpointRefCounts() {
+		if (!refCountTable)
+			return;
+		guarded(()->{
+			for (RefCountStripe stripe: headerLocks) {
+				synchronized (stripe) {
+					for (int i = 0; i < stripe.keys.length; i++) {
+						long physicalOffset = stripe.keys[i];
+						if (physicalOffset == 0 || physicalOffset < lowWatermark.get())
+							continue;
+						assertBlock((int)(physicalOffset/BLOCK_MAX)).putInt((int)(physicalOffset%BLOCK_MAX)+4, stripe.counts[i]);
+						markDirty(physicalOffset, 8);
+					}
+					stripe.clear();
+				}
+			}
+			return null;
+		});
+	}
+
+	/*
+	 * reads work on a private view of the block, so no shared buffer position is ever touched
+	 */
+	private ByteBuffer retrieveSliceAt(long physicalOffset) {
+		if (physicalOffset==0) return EMPTY_BUFFER;
+		int blockNumber = (int)(physicalOffset/BLOCK_MAX);
+		int offsetInBlock = (int) (physicalOffset%BLOCK_MAX);
+		ByteBuffer view = assertBlock(blockNumber).asReadOnlyBuffer();
+		int header = view.getInt(offsetInBlock);
+		view.limit(offsetInBlock+sizeOf(header));
+		view.position(offsetInBlock+(header < 0 ? 12 : 8));
+		return view.slice();
+	}
+
+	/** 
+	 * acquires the slice named by physicalOffset, following forwards 
+	 * @return the offset that was actually acquired, which is what the caller should hold on to
+	 */
+	private long acquireSliceAt(long physicalOffset) {
+		assertWritable();
+		if (physicalOffset==0) return 0;
+		while (true) {
+			physicalOffset = resolve(physicalOffset);
+			int blockNumber = (int)(physicalOffset/BLOCK_MAX);
+			int offsetInBlock = (int) (physicalOffset%BLOCK_MAX);
+			ByteBuffer block = assertBlock(blockNumber);
+			synchronized (headerLock(physicalOffset)) {
+				int refCount = refCountAt(physicalOffset, block, offsetInBlock);
+				if (refCount != FORWARDED) {
+					putRefCount(physicalOffset, block, offsetInBlock, refCount, refCount+1);
+					return physicalOffset;
+				}
+			}
+		}
+	}
+
+	/** 
+	 * releases the slice named by physicalOffset. the caller is assumed to stop naming it, so any forwards 
+	 * passed on the way are told they have one less holder.
+	 */
+	private void releaseSliceAt(long physicalOffset) {
+		assertWritable();
+		// releasing a manifest releases what it names, and so on down. that is done here rather than by 
+		// recursing, since ropes can be deep.
+		ArrayDeque<Long> pending = null;
+		while (true) {
+			long released = releaseOne(physicalOffset);
+			if (released != 0) {
+				if (deduplicate)
+					unfingerprint(released);
+				if (isManifest(released)) {
+					if (pending == null)
+						pending = new ArrayDeque<Long>();
+					for (long chunk: chunksAt(released)[0])
+						pending.add(chunk);
+				}
+				// only now that the manifest has been read can its space be handed out again
+				if (reusesHoles())
+					addHole(released, sizeOf(assertBlock((int)(released/BLOCK_MAX)).getInt((int)(released%BLOCK_MAX))), epoch);
+				raiseLowWaterMark(released);
+			}
+			if (pending == null || pending.isEmpty())
+				return;
+			physicalOffset = pending.poll();
+		}
+	}
+
+	/** @return where the slice was, if that was its last reference, otherwise 0 */
+	private long releaseOne(long physicalOffset) {
+		if (physicalOffset==0) return 0;
+		long named = physicalOffset;
+		int refCount;
+		while (true) {
+			physicalOffset = resolve(physicalOffset);
+			int blockNumber = (int)(physicalOffset/BLOCK_MAX);
+			int offsetInBlock = (int) (physicalOffset%BLOCK_MAX);
+			ByteBuffer block = assertBlock(blockNumber);
+			synchronized (headerLock(physicalOffset)) {
+				refCount = refCountAt(physicalOffset, block, offsetInBlock);
+				if (refCount != FORWARDED) {
+					putRefCount(physicalOffset, block, offsetInBlock, refCount, refCount==1?-1:refCount-1); // 0 is a temporary "dont clean" value
+					refCount--;
+					break;
+				}
+			}
+		}
+		forget(named, physicalOffset);
+		return refCount == 0 ? physicalOffset : 0;
+	}
+
+	/** @return where the slice named by physicalOffset lives now */
+	private long resolve(long physicalOffset) {
+		if (forwards.isEmpty())
+			return physicalOffset;
+		Forward f;
+		while (null != (f = forwards.get(physicalOffset)))
+			physicalOffset = f.target;
+		return physicalOffset;
+	}
+
+	/** walks the forwards from named to resolved, dropping one holder from each */
+	private void forget(long named, long resolved) {
+		while (named != resolved) {
+			Forward f = forwards.get(named);
+			if (f == null) 
+				return;
+			if (f.holders.decrementAndGet() <= 0)
+				forwards.remove(named, f);
+			named = f.target;
+		}
+	}
+
+	private static class Forward implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final long target;
+		final AtomicInteger holders;
+		Forward(long target, int holders) {
+			this.target = target;
+			this.holders = new AtomicInteger(holders);
+		}
+	}
+
+	private void raiseLowWaterMark(long physicalOffset) {
+		// successively read blocks, as long as their refCounts are < 0, raise the lwm
+		// if you lwm past a file boundary, delete the old file
+		if (watermarkLock.tryLock()) {
+			try {
+				long lwm = lowWatermark.get();
+				while (lwm < highWatermark.get() ) {
+					ByteBuffer block = assertBlock((int) (lwm/BLOCK_MAX));
+					if (lwm < recoveredHighWatermark)
+						discardIfIncomplete(lwm, block, (int) (lwm % BLOCK_MAX));
+					if (refCountTable || reusesHoles()) {
+						// a hole can be claimed for reuse at any moment, so checking it and passing it go together
+						synchronized (headerLock(lwm)) {
+							if (refCountAt(lwm, block, (int) (lwm % BLOCK_MAX))>=0)
+								return;
+							if (refCountTable)
+								headerLock(lwm).remove(lwm);
+							lowWatermark.set(lwm=lwm+sizeOf(block.getInt((int) (lwm % BLOCK_MAX))));
+						}
+					} else {
+						if (block.getInt((int) ((lwm % BLOCK_MAX)+4))>=0)
+							return;
+						lowWatermark.set(lwm=lwm+sizeOf(block.getInt((int) (lwm % BLOCK_MAX))));
+					}
+					// check for crossing a block boundary
+					if ((lwm%BLOCK_MAX)==0) 
+						passedBlock(lwm);
+				}
+			} finally {
+				watermarkLock.unlock();
+			}
+		}
+	}
+
+	/** lets go of the block that ends at lwm, and of its file if that ends there too. called holding watermarkLock. */
+	private void passedBlock(long lwm) {
+		Mapping passed = blocks.remove((int)((lwm/BLOCK_MAX)-1));
+		if (passed != null)
+			retire((int)((lwm/BLOCK_MAX)-1), passed);
+		dirtyBlocks.remove((int)((lwm/BLOCK_MAX)-1));
+		// additionally check for crossing a file boundary
+		if ((lwm/BLOCK_MAX)%40==0) {
+			synchronized (files) {
+				int fileNum = (int) (((lwm/BLOCK_MAX)/40)-1);
+				RandomAccessFile [] f = files.remove(fileNum);
+				if (f!=null) {
+					closeFiles(f);
+					reclaimQueue.add(new PendingFile(fileNum));
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Turns on background compaction. Once more than thresholdBytes lie between the low and high watermark, 
+	 * live slices are moved out of the oldest file at no more than bytesPerSecond (0 for no limit), so the low 
+	 * watermark can get past long lived data. Takes effect when the factory is first used.
+	 */
+	public MemoryMappedAssetFactory withCompaction(long thresholdBytes, long bytesPerSecond) {
+		compactionThreshold = thresholdBytes;
+		compactionRate = bytesPerSecond;
+		return this;
+	}
+	
+	/**
+	 * moves up to maxBytes of live slices out of the file the low watermark is in, and then raises the low 
+	 * watermark as far as it will go.
+	 */
+	public CompactionReport compact(long maxBytes) {
+		return whenOpen(()->compactOldestFile(maxBytes));
+	}
+	
+	/** @return everything compaction has done since the factory was opened */
+	public CompactionReport compactionTotals() {
+		return compactionTotals;
+	}
+
+	/** compacts every second, or sooner when admission control wakes it, and then without the rate limit */
+	private void compactInBackground() {
+		while (active) {
+			try {
+				synchronized (compactionMonitor) {
+					compactionMonitor.wait(1000);
+				}
+				whenOpen(()->{
+					if (pressure(false) > 0)
+						compactOldestFile(Long.MAX_VALUE);
+					else if (compactionThreshold > 0 && highWatermark.get() - lowWatermark.get() > compactionThreshold)
+						compactOldestFile(compactionRate > 0 ? compactionRate : Long.MAX_VALUE);
+				});
+			} catch (InterruptedException | IllegalStateException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Turns on admission control, so that writes are held back and then refused when reclamation falls 
+	 * behind, instead of the files growing until the disk is full. Unreclaimed bytes are those between the 
+	 * watermarks that are not live: garbage the low watermark has yet to get past. Above softLimitBytes of 
+	 * them (or below softFreeDiskBytes of usable space on the fullest data volume), each write waits up to 
+	 * 10ms, longer the closer things are to the hard limits, and wakes the compactor and the cleaner. At 
+	 * hardLimitBytes (or hardFreeDiskBytes) a write waits once more, and if nothing has changed it throws a 
+	 * WriteRejectedException without writing anything. Either pair can be 0 to leave it out. The compactor 
+	 * runs with admission control even without withCompaction(), moving live slices whenever there is 
+	 * pressure. Freeing data, and set() from another addressable, are never held back. Takes effect when the 
+	 * factory is first used.
+	 */
+	public MemoryMappedAssetFactory withAdmissionControl(long softLimitBytes, long hardLimitBytes, long softFreeDiskBytes, long hardFreeDiskBytes) {
+		if (softLimitBytes < 0 || hardLimitBytes < softLimitBytes)
+			throw new IllegalArgumentException("The soft limit of "+softLimitBytes+" bytes must be between 0 and the hard limit of "+hardLimitBytes+" bytes");
+		if (hardFreeDiskBytes < 0 || softFreeDiskBytes < hardFreeDiskBytes)
+			throw new IllegalArgumentException("The soft free space of "+softFreeDiskBytes+" bytes must be at least the hard free space of "+hardFreeDiskBytes+" bytes");
+		softUnreclaimed = softLimitBytes;
+		hardUnreclaimed = hardLimitBytes;
+		softFreeDisk = softFreeDiskBytes;
+		hardFreeDisk = hardFreeDiskBytes;
+		return this;
+	}
+
+	/** 
+	 * holds a write back, or turns it away, according to the pressure. this happens before the write counts 
+	 * as an operation, so a writer being held back never holds up close() or the unmapping of passed blocks.
+	 */
+	private void admit() {
+		if ((hardUnreclaimed <= 0 && hardFreeDisk <= 0) || leaderHost != null || closing)
+			return;
+		double pressure = pressure(false);
+		if (pressure <= 0)
+			return;
+		long started = System.nanoTime();
+		relieve(pressure >= 1);
+		if (pressure >= 1) {
+			// the longest throttle, for reclamation to get somewhere before giving up on it
+			LockSupport.parkNanos(MAX_THROTTLE_NANOS);
+			pressure = pressure(true);
+			if (pressure >= 1) {
+				rejectedWrites.increment();
+				long unreclaimed = unreclaimedBytes(), free = hardFreeDisk > 0 ? freeDiskBytes(false) : -1;
+				throw new WriteRejectedException(free >= 0 && free <= hardFreeDisk 
+						? "Only "+free+" bytes of disk are free, against a floor of "+hardFreeDisk+" bytes" 
+						: unreclaimed+" bytes are waiting to be reclaimed, against a limit of "+hardUnreclaimed+" bytes", 
+						unreclaimed, free);
+			}
+		}
+		LockSupport.parkNanos((long)(pressure * MAX_THROTTLE_NANOS));
+		throttledWrites.increment();
+		throttleLatency.since(started);
+	}
+
+	/** @return 0 while under the soft limits, rising to 1 at the hard ones */
+	private double pressure(boolean freshDiskSpace) {
+		double pressure = 0;
+		if (hardUnreclaimed > 0)
+			pressure = pressure(unreclaimedBytes(), softUnreclaimed, hardUnreclaimed);
+		if (hardFreeDisk > 0 && pressure < 1)
+			pressure = Math.max(pressure, pressure(softFreeDisk - freeDiskBytes(freshDiskSpace), 0, softFreeDisk - hardFreeDisk));
+		return pressure;
+	}
+
+	private static double pressure(long value, long soft, long hard) {
+		if (value >= hard)
+			return 1;
+		if (value <= soft)
+			return 0;
+		return (double)(value - soft)/(hard - soft);
+	}
+
+	/** bytes between the watermarks that are not live */
+	private long unreclaimedBytes() {
+		return Math.max(0, highWatermark.get() - lowWatermark.get() - liveBytes.sum());
+	}
+
+	/** @return the usable space on the fullest data volume, looked up again once it is RELIEF_INTERVAL_NANOS old */
+	private long freeDiskBytes(boolean fresh) {
+		long now = System.nanoTime();
+		if (fresh || freeDiskBytes < 0 || now - freeDiskCheckedAt > RELIEF_INTERVAL_NANOS) {
+			long free = Long.MAX_VALUE;
+			for (File dir: dataDirs) {
+				// before the first write the directory may not be there, and a missing file has no space at all
+				File existing = dir.getAbsoluteFile();
+				while (existing != null && !existing.exists())
+					existing = existing.getParentFile();
+				if (existing != null)
+					free = Math.min(free, existing.getUsableSpace());
+			}
+			freeDiskCheckedAt = now;
+			freeDiskBytes = free;
+		}
+		return freeDiskBytes;
+	}
+
+	/** 
+	 * retires the reservations and tries the low watermark again, then wakes the compactor and deletes any 
+	 * passed files that are ready to go. unless it is urgent, this happens at most once per interval.
+	 */
+	private void relieve(boolean urgent) {
+		long now = System.nanoTime(), last = lastRelief.get();
+		if (!urgent && (now - last < RELIEF_INTERVAL_NANOS || !lastRelief.compareAndSet(last, now)))
+			return;
+		// an idle reservation tail stops the low watermark as surely as live data does
+		whenOpen(()->{
+			retireReservations();
+			raiseLowWaterMark(lowWatermark.get());
+		});
+		if (compactorThread != null) {
+			synchronized (compactionMonitor) {
+				compactionMonitor.notify();
+			}
+		}
+		reclaim();
+	}
+
+	/** @return how hard admission control is pushing back, and how often it has had to */
+	public AdmissionReport admissionStats() {
+		return new AdmissionReport(
+				unreclaimedBytes(), 
+				hardFreeDisk > 0 ? freeDiskBytes(false) : -1, 
+				pressure(false), 
+				throttledWrites.sum(), 
+				rejectedWrites.sum(), 
+				throttleLatency.snapshot());
+	}
+
+	public static final class AdmissionReport {
+		/** bytes between the watermarks that are not live */
+		public final long unreclaimedBytes;
+		/** usable bytes on the fullest data volume, or -1 if free space is not being watched */
+		public final long freeDiskBytes;
+		/** 0 under the soft limits, up to 1 at the hard ones */
+		public final double pressure;
+		public final long throttledWrites;
+		public final long rejectedWrites;
+		/** how long each throttled write was held back */
+		public final LatencyHistogram.Snapshot throttles;
+
+		AdmissionReport(long unreclaimedBytes, long freeDiskBytes, double pressure, long throttledWrites, long rejectedWrites, LatencyHistogram.Snapshot throttles) {
+			this.unreclaimedBytes = unreclaimedBytes;
+			this.freeDiskBytes = freeDiskBytes;
+			this.pressure = pressure;
+			this.throttledWrites = throttledWrites;
+			this.rejectedWrites = rejectedWrites;
+			this.throttles = throttles;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("(Unreclaimed:%d bytes, FreeDisk:%d bytes, Pressure:%.2f, Throttled:%d writes, Rejected:%d writes, Throttles:%s)", 
+					unreclaimedBytes, freeDiskBytes, pressure, throttledWrites, rejectedWrites, throttles);
+		}
+	}
+
+	/**
+	 * Keeps the next blocksAhead blocks past the high watermark extended and mapped by a background thread, 
+	 * so a writer crossing into a new block does not stop to grow the file and map it. With preTouch, their 
+	 * pages are faulted in as well. With a mapped window, no more than half the window is mapped ahead. 
+	 * Takes effect when the factory is first used.
+	 */
+	public MemoryMappedAssetFactory withPreallocation(int blocksAhead, boolean preTouch) {
+		this.preallocateBlocks = blocksAhead;
+		this.preTouch = preTouch;
+		return this;
+	}
+
+	/** maps ahead whenever the high watermark moves into a new block, and checks every second anyway */
+	private void preallocateInBackground() {
+		int mappedAhead = -1;
+		while (active) {
+			try {
+				int current = (int)(highWatermark.get()/BLOCK_MAX);
+				int ahead = mappedWindow > 0 ? Math.min(preallocateBlocks, mappedWindow/2) : preallocateBlocks;
+				for (int b = Math.max(current+1, mappedAhead+1); b <= current+ahead; b++) {
+					int blockNumber = b;
+					whenOpen(()->{
+						ByteBuffer block = assertBlock(blockNumber);
+						if (preTouch)
+							((MappedByteBuffer)block).load();
+					});
+					mappedAhead = b;
+				}
+				synchronized (preallocationMonitor) {
+					if ((int)(highWatermark.get()/BLOCK_MAX) == current)
+						preallocationMonitor.wait(1000);
+				}
+			} catch (InterruptedException | IllegalStateException e) {
+				return;
+			}
+		}
+	}
+
+	private CompactionReport compactOldestFile(long maxBytes) {
+		if (!compactionLock.tryLock())
+			return new CompactionReport(0, 0, 0);
+		try {
+			// reservation tails would stop the walk (and the low watermark) cold
+			retireReservations();
+			long lwm = lowWatermark.get();
+			long fileEnd = ((lwm/BLOCK_MAX)/40 + 1) * 40L * BLOCK_MAX;
+			// moving slices only helps once the high watermark has left the file
+			if (fileEnd > highWatermark.get())
+				return new CompactionReport(0, 0, 0);
+
+			long slices = 0, bytes = 0;
+			long position = lwm;
+			while (position < fileEnd && bytes < maxBytes) {
+				// releases elsewhere can carry the low watermark past us, and what is behind it may already be unmapped
+				position = Math.max(position, lowWatermark.get());
+				if (position >= fileEnd)
+					break;
+				ByteBuffer block = assertBlock((int)(position/BLOCK_MAX));
+				int offsetInBlock = (int)(position%BLOCK_MAX);
+				if (position < recoveredHighWatermark)
+					discardIfIncomplete(position, block, offsetInBlock);
+				int size = sizeOf(block.getInt(offsetInBlock));
+				int refCount;
+				synchronized (headerLock(position)) {
+					refCount = refCountAt(position, block, offsetInBlock);
+				}
+				if (size == 0 || refCount == 0) 
+					break; // a write that has not finished yet
+				if (refCount > 0 && relocate(position, block, offsetInBlock, size)) {
+					slices++;
+					bytes += size;
+				}
+				position += size;
+			}
+
+			raiseLowWaterMark(lwm);
+			CompactionReport report = new CompactionReport(slices, bytes, lowWatermark.get() - lwm);
+			compactionTotals = compactionTotals.plus(report);
+			return report;
+		} finally {
+			compactionLock.unlock();
+		}
+	}
+
+	/** copies a live slice to the high watermark and forwards the old offset to it */
+	private boolean relocate(long physicalOffset, ByteBuffer block, int offsetInBlock, int size) {
+		long fileEnd = (physicalOffset/(40L*BLOCK_MAX) + 1)*40L*BLOCK_MAX;
+		long target = writeSlice(new ByteBuffer[] { retrieveSliceAt(physicalOffset) }, flagsAt(physicalOffset), fileEnd);
+		ByteBuffer targetBlock = assertBlock((int)(target/BLOCK_MAX));
+		int targetOffset = (int)(target%BLOCK_MAX);
+		synchronized (headerLock(physicalOffset)) {
+			int refCount = refCountAt(physicalOffset, block, offsetInBlock);
+			if (refCount <= 0) {
+				// released while we were copying
+				targetBlock.putInt(targetOffset+4, -1);
+				markDirty(target, 8);
+				return false;
+			}
+			// the new copy takes over every reference to the old one:
+			targetBlock.putInt(targetOffset+4, refCount);
+			liveBytes.add(sizeOf(targetBlock.getInt(targetOffset)));
+			forwards.put(physicalOffset, new Forward(target, refCount));
+			forwardsChanged.incrementAndGet();
+			putRefCount(physicalOffset, block, offsetInBlock, refCount, FORWARDED);
+			markDirty(target, 8);
+		}
+		if (deduplicate)
+			refingerprint(physicalOffset, target);
+		return true;
+	}
+
+	/** what a compaction pass (or all of them) achieved */
+	public static final class CompactionReport {
+		public final long relocatedSlices;
+		public final long relocatedBytes;
+		/** how far the low watermark moved */
+		public final long reclaimedBytes;
+
+		CompactionReport(long relocatedSlices, long relocatedBytes, long reclaimedBytes) {
+			this.relocatedSlices = relocatedSlices;
+			this.relocatedBytes = relocatedBytes;
+			this.reclaimedBytes = reclaimedBytes;
+		}
+
+		CompactionReport plus(CompactionReport other) {
+			return new CompactionReport(relocatedSlices+other.relocatedSlices, relocatedBytes+other.relocatedBytes, reclaimedBytes+other.reclaimedBytes);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("(Relocated:%d slices/%d bytes, Reclaimed:%d bytes)", relocatedSlices, relocatedBytes, reclaimedBytes);
+		}
+	}
+
+
+	/**
+	 * Opens the store in basePath from the block files alone, for when the factory was never serialized or 
+	 * the process died. The block size comes from the checkpoint when there is one, otherwise from maxBlockSize.
+	 */
+	public static MemoryMappedAssetFactory recover(Optional<String> basePath, Optional<Integer> maxBlockSize) throws IOException {
+		return recover(Collections.singletonList(basePath.orElse("data")), maxBlockSize);
+	}
+
+	/** recover() for a store striped across basePaths */
+	public static MemoryMappedAssetFactory recover(List<String> basePaths, Optional<Integer> maxBlockSize) throws IOException {
+		Properties checkpoint = readCheckpoint(new File(basePaths.get(0)));
+		if (checkpoint != null) 
+			maxBlockSize = Optional.of(Integer.parseInt(checkpoint.getProperty("blockMax")));
+		MemoryMappedAssetFactory factory = new MemoryMappedAssetFactory(basePaths, maxBlockSize);
+		factory.recover();
+		return factory;
+	}
+
+	/**
+	 * Brings the watermarks in line with what is on disk, discarding writes that never completed. Use this 
+	 * instead of trusting the serialized watermarks when the factory may not have been closed cleanly. It must 
+	 * be called before the factory is otherwise used.
+	 */
+	public RecoveryReport recover() throws IOException {
+		synchronized(this) {
+			if (active || closing)
+				throw new IllegalStateException("Recovery must happen before the factory is used");
+			long started = System.currentTimeMillis();
+
+			Properties checkpoint = readCheckpoint(baseFile);
+			if (checkpoint != null) {
+				if (Integer.parseInt(checkpoint.getProperty("blockMax")) != BLOCK_MAX)
+					throw new IOException("Checkpoint block size does not match "+BLOCK_MAX);
+				if (Integer.parseInt(checkpoint.getProperty("stripes", "1")) != dataDirs.length)
+					throw new IOException("Checkpoint was written for "+checkpoint.getProperty("stripes", "1")+" data directories, not "+dataDirs.length);
+				reservationSize = Integer.parseInt(checkpoint.getProperty("reservationSize"));
+			}
+
+			List<Integer> fileNumbers = existingFileNumbers();
+			if (fileNumbers.isEmpty()) 
+				return recoveryReport = new RecoveryReport(checkpoint != null, 0, 0, 0, 0, 0, 0, 1L, 1L, System.currentTimeMillis()-started);
+			int lastFile = fileNumbers.get(fileNumbers.size()-1);
+			int firstBlock = fileNumbers.get(0)*40;
+			int lastBlock = lastFile*40 - 1;
+			for (int blockNumber = lastFile*40; blockNumber < (lastFile+1)*40; blockNumber++) 
+				if (stripeFile(blockNumber%dataDirs.length, lastFile).length() >= positionInFile(blockNumber)+BLOCK_MAX)
+					lastBlock = blockNumber;
+			long lwm = ((long)firstBlock)*BLOCK_MAX + (firstBlock == 0 ? 1 : 0);
+			if (checkpoint != null) {
+				lwm = Math.max(lwm, Long.parseLong(checkpoint.getProperty("lowWatermark")));
+				firstBlock = Math.max(firstBlock, (int)(Long.parseLong(checkpoint.getProperty("scanFrom"))/BLOCK_MAX));
+			}
+			long lowestLive = lwm;
+			Map<Integer, BlockScan> scans = IntStream.rangeClosed(firstBlock, lastBlock)
+					.parallel()
+					.mapToObj(blockNumber->guarded(()->scanBlock(blockNumber, lowestLive)))
+					.collect(Collectors.toMap(scan->scan.blockNumber, scan->scan));
+
+			// the high watermark goes after the last slice in the last block that has one. everything unwritten 
+			// below that is turned into garbage, so the headers can be walked from end to end again
+			int hwmBlock = scans.values().stream().filter(scan->scan.endOfData > 0).mapToInt(scan->scan.blockNumber).max().orElse(firstBlock);
+			long hwm = ((long)hwmBlock)*BLOCK_MAX + (scans.containsKey(hwmBlock) ? scans.get(hwmBlock).endOfData : 0);
+			hwm = Math.max(Math.max(lwm, hwm), hwmBlock == 0 ? 1 : 0);
+			if (BLOCK_MAX - (hwm % BLOCK_MAX) < 8)
+				hwm += BLOCK_MAX - (hwm % BLOCK_MAX);
+			long gaps = 0;
+			for (BlockScan scan: scans.values()) {
+				gaps += scan.gaps;
+				if (scan.blockNumber < hwmBlock && scan.unwrittenFrom >= 0) {
+					guarded(()->{
+						ByteBuffer block = assertBlock(scan.blockNumber);
+						block.putInt(scan.unwrittenFrom, BLOCK_MAX - scan.unwrittenFrom);
+						block.putInt(scan.unwrittenFrom+4, -1);
+						return null;
+					});
+					gaps++;
+				}
+			}
+
+			highWatermark.set(hwm);
+			lowWatermark.set(Math.min(lwm, hwm));
+			recoveredHighWatermark = hwm;
+			liveBytes.reset();
+			liveBytes.add(scans.values().stream().mapToLong(scan->scan.liveBytes).sum());
+			recountLiveBytes = false;
+			// anything forwarded into space that has already been reclaimed is gone. a forward into a file that 
+			// was itself compacted goes on through the next one, so it is the end of the chain that counts
+			loadForwards();
+			forwards.values().removeIf(f->resolve(f.target) < lowWatermark.get());
+
+			// files wholly below the low watermark are garbage
+			int lwmFile = (int)((lowWatermark.get()/BLOCK_MAX)/40);
+			fileNumbers.stream().filter(fn->fn < lwmFile).forEach(fn->reclaimQueue.add(new PendingFile(fn)));
+			guarded(()->{
+				raiseLowWaterMark(lowWatermark.get());
+				return null;
+			});
+			reclaim();
+
+			recoveryReport = new RecoveryReport(
+					checkpoint != null, 
+					scans.size(),
+					scans.values().stream().mapToLong(scan->scan.liveSlices).sum(),
+					scans.values().stream().mapToLong(scan->scan.liveBytes).sum(),
+					scans.values().stream().mapToLong(scan->scan.discardedSlices).sum(),
+					scans.values().stream().mapToLong(scan->scan.discardedBytes).sum(),
+					gaps,
+					lowWatermark.get(),
+					highWatermark.get(),
+					System.currentTimeMillis()-started);
+			return recoveryReport;
+		}
+	}
+
+	/** @return what the last call to recover() found, or null if there has not been one */
+	public RecoveryReport recoveryReport() {
+		return recoveryReport;
+	}
+
+	/** @return the file numbers present in any of the data directories, in order */
+	private List<Integer> existingFileNumbers() {
+		Set<Integer> fileNumbers = new TreeSet<Integer>();
+		for (File dir: dataDirs) {
+			String [] names = dir.list();
+			if (names != null) {
+				for (String name: names) {
+					try {
+						fileNumbers.add(Integer.parseInt(name));
+					} catch (NumberFormatException e) {
+					}
+				}
+			}
+		}
+		return new ArrayList<Integer>(fileNumbers);
+	}
+
+	/** walks every header in a block, discarding incomplete slices and patching over unwritten gaps */
+	private BlockScan scanBlock(int blockNumber, long lwm) {
+		BlockScan scan = new BlockScan(blockNumber);
+		ByteBuffer block = assertBlock(blockNumber);
+		int position = blockNumber == 0 ? 1 : 0;
+		int gapStart = -1;
+		while (position <= BLOCK_MAX - 8) {
+			int size = sizeOf(block.getInt(position));
+			if (size == 0) {
+				// claimed but never written: the next write can only start on a reservation boundary
+				if (gapStart < 0) 
+					gapStart = position;
+				position = (position/reservationSize + 1) * reservationSize;
+				continue;
+			}
+			if (size < 8 || ((long)position) + size > BLOCK_MAX) {
+				// a header we cant make sense of. nothing after it can be trusted either.
+				if (gapStart < 0)
+					gapStart = position;
+				break;
+			}
+			if (gapStart >= 0) {
+				block.putInt(gapStart, position - gapStart);
+				block.putInt(gapStart+4, -1);
+				scan.gaps++;
+				gapStart = -1;
+			}
+			// counts below the low watermark can be stale, since the reference count table does not write back 
+			// what it has already passed, so only what is above it is counted as live
+			int refCount = block.getInt(position+4);
+			if (refCount == 0) {
+				block.putInt(position+4, -1);
+				scan.discardedSlices++;
+				scan.discardedBytes += size;
+			} else if (refCount > 0 && ((long)blockNumber)*BLOCK_MAX + position >= lwm) {
+				scan.liveSlices++;
+				scan.liveBytes += size;
+			}
+			position += size;
+			scan.endOfData = position;
+		}
+		if (position <= BLOCK_MAX - 8 && gapStart < 0)
+			gapStart = position;
+		scan.unwrittenFrom = gapStart;
+		return scan;
+	}
+
+	/** 
+	 * walks the headers from the low watermark to the high, adding up the slices with a reference count above 
+	 * 0. only needed for a factory serialized before live bytes were kept, before anything else touches it.
+	 */
+	private long countLiveBytes() {
+		long live = 0;
+		long position = lowWatermark.get(), hwm = highWatermark.get();
+		while (position < hwm) {
+			ByteBuffer block = assertBlock((int)(position/BLOCK_MAX));
+			int offsetInBlock = (int)(position%BLOCK_MAX);
+			int size = sizeOf(block.getInt(offsetInBlock));
+			if (size == 0) {
+				// claimed but never written, so on to the next reservation
+				position += (offsetInBlock/reservationSize + 1) * reservationSize - offsetInBlock;
+				continue;
+			}
+			if (size < 8 || offsetInBlock + (long)size > BLOCK_MAX)
+				break;
+			if (block.getInt(offsetInBlock+4) > 0)
+				live += size;
+			position += size;
+		}
+		return live;
+	}
+
+	/** a slice still marked incomplete below the recovered high watermark is never going to be finished */
+	private void discardIfIncomplete(long physicalOffset, ByteBuffer block, int offsetInBlock) {
+		synchronized (headerLock(physicalOffset)) {
+			if (block.getInt(offsetInBlock) != 0 && block.getInt(offsetInBlock+4) == 0) {
+				block.putInt(offsetInBlock+4, -1);
+				markDirty(physicalOffset, 8);
+			}
+		}
+	}
+
+	private static class BlockScan {
+		final int blockNumber;
+		int endOfData;
+		int unwrittenFrom;
+		long liveSlices, liveBytes, discardedSlices, discardedBytes, gaps;
+		BlockScan(int blockNumber) {
+			this.blockNumber = blockNumber;
+		}
+	}
+
+	/** what recover() found on disk */
+	public static final class RecoveryReport {
+		public final boolean fromCheckpoint;
+		public final long blocksScanned;
+		public final long liveSlices;
+		public final long liveBytes;
+		/** slices whose write never completed */
+		public final long discardedSlices;
+		public final long discardedBytes;
+		/** stretches of claimed but unwritten space that were turned into garbage */
+		public final long gapsRepaired;
+		public final long lowWatermark;
+		public final long highWatermark;
+		public final long millis;
+
+		RecoveryReport(boolean fromCheckpoint, long blocksScanned, long liveSlices, long liveBytes, long discardedSlices, 
+				long discardedBytes, long gapsRepaired, long lowWatermark, long highWatermark, long millis) {
+			this.fromCheckpoint = fromCheckpoint;
+			this.blocksScanned = blocksScanned;
+			this.liveSlices = liveSlices;
+			this.liveBytes = liveBytes;
+			this.discardedSlices = discardedSlices;
+			this.discardedBytes = discardedBytes;
+			this.gapsRepaired = gapsRepaired;
+			this.lowWatermark = lowWatermark;
+			this.highWatermark = highWatermark;
+			this.millis = millis;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("(Checkpoint:%b, Blocks:%d, Live:%d slices/%d bytes, Discarded:%d slices/%d bytes, Gaps:%d, LWM:%d, HWM:%d, Took:%dms)",
+					fromCheckpoint, blocksScanned, liveSlices, liveBytes, discardedSlices, discardedBytes, gapsRepaired, lowWatermark, highWatermark, millis);
+		}
+	}
+
+	/**
+	 * records enough to recover without a full scan. scanFrom is the oldest place an unfinished write 
+	 * could be: the start of any live reservation, or the block before the high watermark (for the garbage 
+	 * that fills out a block when the high watermark rolls over).
+	 */
+	private void writeCheckpoint() {
+		long hwm = highWatermark.get();
+		long scanFrom = ((hwm-1)/BLOCK_MAX)*BLOCK_MAX;
+		for (Reservation r: activeReservations)
+			scanFrom = Math.min(scanFrom, r.start);
+		try {
+			storeCheckpoint(baseFile, BLOCK_MAX, reservationSize, dataDirs.length, lowWatermark.get(), hwm, scanFrom);
+			storeForwards();
+		} catch (IOException e) {
+			checkpointFailed(e);
+		}
+	}
+
+	/** a checkpoint that could not be written only makes recovery slower, so it is counted rather than thrown */
+	private void checkpointFailed(IOException e) {
+		checkpointFailures.incrementAndGet();
+		checkpointError = e.toString();
+	}
+
+	static void storeCheckpoint(File dir, int blockMax, int reservationSize, int stripes, long lwm, long hwm, long scanFrom) throws IOException {
+		Properties checkpoint = new Properties();
+		checkpoint.setProperty("blockMax", Integer.toString(blockMax));
+		checkpoint.setProperty("reservationSize", Integer.toString(reservationSize));
+		checkpoint.setProperty("stripes", Integer.toString(stripes));
+		checkpoint.setProperty("lowWatermark", Long.toString(lwm));
+		checkpoint.setProperty("highWatermark", Long.toString(hwm));
+		checkpoint.setProperty("scanFrom", Long.toString(scanFrom));
+		File tmp = new File(dir, CHECKPOINT+".tmp");
+		try (OutputStream out = new FileOutputStream(tmp)) {
+			checkpoint.store(out, null);
+		}
+		Files.move(tmp.toPath(), new File(dir, CHECKPOINT).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** 
+	 * writes the forwards out, if any have been added since they last were, so that handles and serialized 
+	 * addressables still naming a moved slice can find it after recover(). the holder counts may be stale, 
+	 * but only ever high, which just keeps a forward around longer.
+	 */
+	private void storeForwards() throws IOException {
+		synchronized (forwards) {
+			long changed = forwardsChanged.get();
+			if (changed == forwardsStored)
+				return;
+			storeForwards(baseFile, forwardsSnapshot());
+			forwardsStored = changed;
+		}
+	}
+
+	/** @return the forwards as storeForwards() writes them: a count, then (from, target, holders) for each */
+	ByteBuffer forwardsSnapshot() {
+		List<Map.Entry<Long, Forward>> entries = new ArrayList<Map.Entry<Long, Forward>>(forwards.entrySet());
+		ByteBuffer snapshot = ByteBuffer.allocate(4 + entries.size()*20);
+		snapshot.putInt(entries.size());
+		for (Map.Entry<Long, Forward> entry: entries)
+			snapshot.putLong(entry.getKey()).putLong(entry.getValue().target).putInt(entry.getValue().holders.get());
+		snapshot.flip();
+		return snapshot;
+	}
+
+	/** writes a forwards snapshot into dir, where recover() looks for it */
+	static void storeForwards(File dir, ByteBuffer snapshot) throws IOException {
+		File tmp = new File(dir, FORWARDS+".tmp");
+		try (FileOutputStream fout = new FileOutputStream(tmp)) {
+			FileChannel out = fout.getChannel();
+			ByteBuffer data = snapshot.duplicate();
+			while (data.hasRemaining())
+				out.write(data);
+			// a file is deleted on the strength of this, so it has to survive more than the process
+			fout.getFD().sync();
+		}
+		Files.move(tmp.toPath(), new File(dir, FORWARDS).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** reads back what storeForwards() wrote, keeping any forward already known */
+	private void loadForwards() throws IOException {
+		File f = new File(baseFile, FORWARDS);
+		if (!f.exists())
+			return;
+		ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+		for (int n = snapshot.getInt(); n > 0; n--) {
+			long from = snapshot.getLong(), target = snapshot.getLong();
+			forwards.putIfAbsent(from, new Forward(target, snapshot.getInt()));
+		}
+	}
+
+	/** 
+	 * on a follower, takes on the forwards of the leader, so handles it hands out resolve here too. they are 
+	 * stored before the follower deletes a file, as the leader's are.
+	 */
+	void followForwards(ByteBuffer snapshot) {
+		Set<Long> known = new HashSet<Long>();
+		boolean changed = false;
+		for (int n = snapshot.getInt(); n > 0; n--) {
+			long from = snapshot.getLong(), target = snapshot.getLong();
+			int holders = snapshot.getInt();
+			known.add(from);
+			changed |= forwards.putIfAbsent(from, new Forward(target, holders)) == null;
+		}
+		changed |= forwards.keySet().retainAll(known);
+		if (changed)
+			forwardsChanged.incrementAndGet();
+	}
+
+	private static Properties readCheckpoint(File baseFile) throws IOException {
+		File f = new File(baseFile, CHECKPOINT);
+		if (!f.exists())
+			return null;
+		Properties checkpoint = new Properties();
+		try (InputStream in = new FileInputStream(f)) {
+			checkpoint.load(in);
+		}
+		return checkpoint;
+	}
+
+
+	/**
+	 * Copies the store into targetDir without closing it or holding up writers. The files between the 
+	 * watermarks are kept from being deleted until the copy is done, and the copy is opened with recover(). 
+	 * A store striped over several directories is copied into targetDir/stripe0, targetDir/stripe1 and so on.
+	 */
+	public BackupReport backup(File targetDir) throws IOException {
+		return backup(targetDir, null);
+	}
+
+	/**
+	 * Brings a copy that backup() made from this store up to date, copying only what was written after since 
+	 * was taken, plus the reference counts of everything older. A null since, or one that does not fit this 
+	 * store, means a full copy, as does hole reuse, since that can rewrite data below the high watermark.
+	 */
+	public BackupReport backup(File targetDir, BackupReport since) throws IOException {
+		File [] targetDirs = new File[dataDirs.length];
+		for (int stripe = 0; stripe < targetDirs.length; stripe++)
+			targetDirs[stripe] = dataDirs.length == 1 ? targetDir : new File(targetDir, "stripe"+stripe);
+		try (MemoryMappedBackup.DirectorySink sink = new MemoryMappedBackup.DirectorySink(targetDirs, BLOCK_MAX, reservationSize)) {
+			return new MemoryMappedBackup(this).backup(sink, since);
+		}
+	}
+
+	/** backup(), as a stream on out for restore() to apply to a set of empty (or previously restored) directories */
+	public BackupReport backup(WritableByteChannel out, BackupReport since) throws IOException {
+		return new MemoryMappedBackup(this).backup(new MemoryMappedBackup.ChannelSink(out, BLOCK_MAX, dataDirs.length, reservationSize), since);
+	}
+
+	/** 
+	 * Writes a stream from backup(WritableByteChannel, BackupReport) into basePaths, which must be as many as 
+	 * the store that made it had. Incremental streams are applied in the order they were taken, on top of the 
+	 * full one. Open the result with recover(basePaths, ...).
+	 */
+	public static void restore(ReadableByteChannel in, List<String> basePaths) throws IOException {
+		MemoryMappedBackup.restore(in, basePaths);
+	}
+
+	/** keeps the file the low watermark is in, and every later one, until pin is removed. @return the low watermark */
+	long pin(Object pin) {
+		// under the reclaim lock, so the file cannot be deleted between reading the low watermark and pinning it
+		reclaimLock.lock();
+		try {
+			long lwm = lowWatermark.get();
+			pins.put(pin, (int)((lwm/BLOCK_MAX)/40));
+			return lwm;
+		} finally {
+			reclaimLock.unlock();
+		}
+	}
+
+	void unpin(Object pin) {
+		pins.remove(pin);
+	}
+
+	long highWatermark() {
+		return highWatermark.get();
+	}
+
+	/** @return where the oldest reservation still being written into starts, or hwm if there is none */
+	long oldestUnfinished(long hwm) {
+		long oldest = hwm;
+		for (Reservation r: activeReservations)
+			oldest = Math.min(oldest, r.start);
+		return oldest;
+	}
+
+	int blockMax() {
+		return BLOCK_MAX;
+	}
+
+	int stripes() {
+		return dataDirs.length;
+	}
+
+	int reservationSize() {
+		return reservationSize;
+	}
+
+	/** @return true if holes are actually reused, which needs get() to copy */
+	boolean reusesHoles() {
+		return reuseHoles && copiesViews();
+	}
+
+	/** @return offset and reference count pairs for the slices that start in blockNumber from start to end */
+	long [] refCountsIn(int blockNumber, int start, int end) {
+		ByteBuffer block = assertBlock(blockNumber);
+		List<long[]> found = new ArrayList<long[]>();
+		int offset = blockNumber == 0 && start == 0 ? 1 : start;
+		while (offset < end && offset <= BLOCK_MAX - 8) {
+			int size = sizeOf(block.getInt(offset));
+			if (size == 0) {
+				offset = (offset/reservationSize + 1) * reservationSize;
+				continue;
+			}
+			if (size < 8 || ((long)offset) + size > BLOCK_MAX)
+				break;
+			long physicalOffset = ((long)blockNumber)*BLOCK_MAX + offset;
+			synchronized (headerLock(physicalOffset)) {
+				found.add(new long [] { physicalOffset, refCountAt(physicalOffset, block, offset) });
+			}
+			offset += size;
+		}
+		long [] flat = new long[found.size()*2];
+		for (int i = 0; i < found.size(); i++) {
+			flat[2*i] = found.get(i)[0];
+			flat[2*i+1] = found.get(i)[1];
+		}
+		return flat;
+	}
+
+
+	/**
+	 * Makes this factory a replication leader: followers that connect on port (0 for any free one) get a full 
+	 * copy of the store, and then every intervalMillis whatever has been written since, including changes to 
+	 * reference counts and the watermarks. Takes effect when the factory is first used.
+	 */
+	public MemoryMappedAssetFactory withReplication(int port, long intervalMillis) {
+		replicate = true;
+		replicationPort = port;
+		replicationInterval = Math.max(1, intervalMillis);
+		return this;
+	}
+
+	/** @return the port followers connect to, or -1 if this is not a leader */
+	public int replicationPort() {
+		return whenOpen(()->replication == null ? -1 : replication.port());
+	}
+
+	/**
+	 * Opens a read only follower of the leader at host:port, keeping its copy of the store in basePath. It 
+	 * reads by handle (read(), length() and wrap(...).get()) and refuses to write or change reference counts. 
+	 * A value written on the leader shows up a replication interval or so later. If the connection drops, the 
+	 * follower reconnects and starts again from a full copy.
+	 */
+	public static MemoryMappedAssetFactory follow(Optional<String> basePath, Optional<Integer> maxBlockSize, String host, int port) {
+		return follow(Collections.singletonList(basePath.orElse("data")), maxBlockSize, host, port);
+	}
+
+	/** follow() keeping the copy striped across basePaths, which need not match the leader's */
+	public static MemoryMappedAssetFactory follow(List<String> basePaths, Optional<Integer> maxBlockSize, String host, int port) {
+		MemoryMappedAssetFactory factory = new MemoryMappedAssetFactory(basePaths, maxBlockSize);
+		factory.leaderHost = host;
+		factory.leaderPort = port;
+		factory.whenOpen(()->null);
+		return factory;
+	}
+
+	private void assertWritable() {
+		if (leaderHost != null)
+			throw new UnsupportedOperationException("A follower is read only");
+	}
+
+	/** copies piece into the blocks at physicalOffset, as a follower does with what its leader sends */
+	void applyAt(long physicalOffset, ByteBuffer piece) {
+		guarded(()->{
+			ByteBuffer target = assertBlock((int)(physicalOffset/BLOCK_MAX)).duplicate();
+			target.position((int)(physicalOffset%BLOCK_MAX));
+			target.put(piece.duplicate());
+			markDirty(physicalOffset, piece.limit());
+			return null;
+		});
+	}
+
+	/** takes on the watermarks of a leader, letting go of the blocks and files its low watermark has passed */
+	void followWatermarks(long lwm, long hwm) {
+		highWatermark.accumulateAndGet(hwm, Math::max);
+		watermarkLock.lock();
+		try {
+			long passed = lowWatermark.get();
+			if (lwm > passed) {
+				lowWatermark.set(lwm);
+				for (long boundary = (passed/BLOCK_MAX + 1)*BLOCK_MAX; boundary <= lwm; boundary += BLOCK_MAX)
+					passedBlock(boundary);
+			}
+		} finally {
+			watermarkLock.unlock();
+		}
+	}
+
+	/** @return how replication is going, from the point of view of a leader or of a follower */
+	public ReplicationReport replicationStats() {
+		MemoryMappedReplication r = replication;
+		return r == null 
+				? new ReplicationReport(leaderHost != null, 0, 0, 0, lowWatermark.get(), highWatermark.get(), null) 
+				: r.report(lowWatermark.get(), highWatermark.get());
+	}
+
+	/** writes data however it has to be stored, and acquires it. @return 0 for no data */
+	private long writeData(ByteBuffer data) {
+		if (data == null || data.limit() <= 0)
+			return 0;
+		return data.limit() > maxSlicePayload() 
+				? acquireSliceAt(writeChunked(Collections.singletonList(data).iterator())) 
+				: writeShared(data);
+	}
+
+	/** the whole value of the data named by physicalOffset, as get() returns it */
+	private ByteBuffer valueAt(long physicalOffset) {
+		if (isManifest(physicalOffset)) {
+			long length = lengthAt(physicalOffset);
+			if (length > Integer.MAX_VALUE - 8)
+				throw new IllegalStateException(length+" bytes is too large for one buffer, use chunks()");
+			ByteBuffer copy = ByteBuffer.allocate((int)length);
+			for (ByteBuffer piece: piecesAt(physicalOffset))
+				copy.put(piece);
+			copy.flip();
+			return copy.asReadOnlyBuffer();
+		}
+		if (physicalOffset != 0 && (flagsAt(physicalOffset) & COMPRESSED) != 0)
+			return dataAt(physicalOffset);
+		ByteBuffer view = retrieveSliceAt(physicalOffset);
+		// the block under a view may be unmapped as soon as we return
+		return copiesViews() ? copyOf(view) : view;
+	}
+
+	/*
+	 * handles: the same operations as an addressable, on a plain long that the caller can keep in a primitive 
+	 * array or off heap. the low 48 bits are the offset of the slice, and the high 16 its length, or 0xFFFF 
+	 * when that does not fit and has to be read from the slice. a handle is a reference: write() and 
+	 * acquire() give the caller one, and release() gives it back. 
+	 */
+
+	/** the handle of no data */
+	public static final long NULL_HANDLE = 0L;
+
+	private static final long HANDLE_OFFSET_MASK = (1L << 48) - 1;
+	private static final int HANDLE_UNKNOWN_LENGTH = 0xFFFF;
+
+	private static long handle(long physicalOffset, long length) {
+		if ((physicalOffset & ~HANDLE_OFFSET_MASK) != 0)
+			throw new IllegalStateException("offset "+physicalOffset+" does not fit in a handle");
+		return physicalOffset | (Math.min(length, HANDLE_UNKNOWN_LENGTH) << 48);
+	}
+
+	private static long offsetOf(long handle) {
+		return handle & HANDLE_OFFSET_MASK;
+	}
+
+	/** @return a handle holding a reference to a new copy of data (or a shared one, with deduplication on) */
+	public long write(ByteBuffer data) {
+		if (data != null && data.limit() > 0)
+			admit();
+		long started = System.nanoTime();
+		long handle = whenOpen(()->{
+			long physicalOffset = writeData(data);
+			return physicalOffset == 0 ? NULL_HANDLE : handle(physicalOffset, lengthAt(physicalOffset));
+		});
+		writeLatency.since(started);
+		return handle;
+	}
+
+	/** @return the data named by handle, with the same lifetime as Addressable.get() */
+	public ByteBuffer read(long handle) {
+		long started = System.nanoTime();
+		ByteBuffer value = whenOpen(()->valueAt(resolve(offsetOf(handle))));
+		readLatency.since(started);
+		return value;
+	}
+
+	/** @return the length of the data named by handle, which usually needs no lookup */
+	public long length(long handle) {
+		if ((handle >>> 48) != HANDLE_UNKNOWN_LENGTH)
+			return handle >>> 48;
+		return whenOpen(()->lengthAt(resolve(offsetOf(handle))));
+	}
+
+	/** @return another handle on the same data, holding a reference of its own */
+	public long acquire(long handle) {
+		if (handle == NULL_HANDLE)
+			return NULL_HANDLE;
+		return whenOpen(()->handle(acquireSliceAt(offsetOf(handle)), handle >>> 48));
+	}
+
+	/** gives back the reference held by handle, which must not be used again */
+	public void release(long handle) {
+		whenOpen(()->releaseSliceAt(offsetOf(handle)));
+	}
+
+	/**
+	 * @return the same handle, pointing at where its data lives now if the compactor has moved it. The handle 
+	 * passed in must not be used again. Long lived handles should be refreshed now and then, since the 
+	 * factory remembers where moved data went until every handle on it has been refreshed or released.
+	 */
+	public long refresh(long handle) {
+		return whenOpen(()->{
+			long named = offsetOf(handle);
+			long resolved = resolve(named);
+			if (resolved == named)
+				return handle;
+			forget(named, resolved);
+			return handle(resolved, handle >>> 48);
+		});
+	}
+
+	/** @return an addressable that takes over the reference held by handle */
+	public Addressable wrap(long handle) {
+		MemoryMappedAddressable addressable = new MemoryMappedAddressable();
+		addressable.physicalOffset = offsetOf(handle);
+		addressable.size = (int)Math.min(length(handle), Integer.MAX_VALUE);
+		return addressable;
+	}
+
+	/** @return a handle holding a reference of its own to the data of a */
+	public long handleOf(Addressable a) {
+		return whenOpen(()->{
+			long physicalOffset = acquireSliceAt(((MemoryMappedAddressable)a).current());
+			return physicalOffset == 0 ? NULL_HANDLE : handle(physicalOffset, lengthAt(physicalOffset));
+		});
+	}
+
+	private class MemoryMappedAddressable implements Addressable, Serializable {
+		private static final long serialVersionUID = 1L;
+		volatile long physicalOffset = 0L;
+		int size = 0;
+		
+		/** follows any forwards, repointing this addressable at where its slice lives now */
+		long current() {
+			long named = physicalOffset;
+			long resolved = resolve(named);
+			if (resolved != named && ADDRESSABLE_OFFSET.compareAndSet(this, named, resolved))
+				forget(named, resolved);
+			return resolved;
+		}
+		
+		/** writes first and releases after, since data may well be a view of what is being replaced */
+		@Override
+		public void set(ByteBuffer data) {
+			if (data != null && data.limit() > 0)
+				admit();
+			long started = System.nanoTime();
+			store(data);
+			writeLatency.since(started);
+		}
+
+		/** set(), for a write that has already been admitted */
+		void store(ByteBuffer data) {
+			whenOpen(()->{
+				long old = current();
+				size = data == null ? 0 : Math.max(0, data.limit());
+				physicalOffset = writeData(data);
+				releaseSliceAt(old);
+			});
+		}
+
+		/** each piece becomes at least one chunk, so pieces should be reasonably large */
+		@Override
+		public void set(Iterator<ByteBuffer> pieces) {
+			admit();
+			long started = System.nanoTime();
+			whenOpen(()->{
+				long old = current();
+				long written;
+				ByteBuffer first = pieces.hasNext() ? pieces.next() : EMPTY_BUFFER;
+				if (!pieces.hasNext() && first.limit() <= maxSlicePayload())
+					written = first.limit() == 0 ? 0 : writeShared(first);
+				else 
+					written = acquireSliceAt(writeChunked(prepend(first, pieces)));
+				physicalOffset = written;
+				size = (int)Math.min(lengthAt(written), Integer.MAX_VALUE);
+				releaseSliceAt(old);
+			});
+			writeLatency.since(started);
+		}
+
+		@Override
+		public void set(Addressable src) {
+			long started = System.nanoTime();
+			whenOpen(()->{
+				long old = current();
+				size = ((MemoryMappedAddressable)src).size;
+				physicalOffset = acquireSliceAt(((MemoryMappedAddressable)src).current());
+				releaseSliceAt(old);
+			});
+			writeLatency.since(started);
+		}
+
+		/** shares the appended data rather than copying it, unless the result is under the rope threshold */
+		@Override
+		public void append(Addressable a) {
+			admit();
+			long started = System.nanoTime();
+			whenOpen(()->{
+				long old = current();
+				long written = writeAppended(old, ((MemoryMappedAddressable)a).current());
+				physicalOffset = acquireSliceAt(written);
+				size = (int)Math.min(lengthAt(written), Integer.MAX_VALUE);
+				releaseSliceAt(old);
+			});
+			writeLatency.since(started);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public long length() {
+			return whenOpen(()->lengthAt(current()));
+		}
+
+		/** 
+		 * @return a read only view of the data. By default the view is of the mapped block itself, which stays 
+		 * mapped for as long as the view is reachable, but it only shows this data while the data is held: once 
+		 * the addressable is set or freed, the space can be written over (with hole reuse) or its file deleted. 
+		 * With explicit unmapping or a mapped window it is a copy instead. Data stored in chunks is copied into 
+		 * one buffer, so use chunks() for anything large.
+		 */
+		@Override
+		public ByteBuffer get() {
+			long started = System.nanoTime();
+			ByteBuffer value = whenOpen(()->valueAt(current()));
+			readLatency.since(started);
+			return value;
+		}
+
+		/** 
+		 * @return the data a chunk at a time, each one read as it is reached. The views have the same 
+		 * lifetime as those from get(). 
+		 */
+		@Override
+		public Iterator<ByteBuffer> chunks() {
+			return whenOpen(()->{
+				long physicalOffset = current();
+				if (!isManifest(physicalOffset))
+					return Collections.singletonList(get()).iterator();
+				Leaves leaves = new Leaves(physicalOffset);
+				return new Iterator<ByteBuffer>() {
+					@Override
+					public boolean hasNext() {
+						return whenOpen(()->leaves.hasNext());
+					}
+					@Override
+					public ByteBuffer next() {
+						long started = System.nanoTime();
+						ByteBuffer next = whenOpen(()->{
+							long [] leaf = leaves.next();
+							ByteBuffer chunk = chunkAt(leaf[0], (int)leaf[1]);
+							return copiesViews() ? copyOf(chunk) : chunk;
+						});
+						readLatency.since(started);
+						return next;
+					}
+				};
+			});
+		}
+
+		/** @return every piece of the data at once, ready for a gathering write. Same lifetime as get(). */
+		@Override
+		public ByteBuffer [] gather() {
+			long started = System.nanoTime();
+			ByteBuffer [] value = whenOpen(()->{
+				List<ByteBuffer> pieces = piecesAt(current());
+				ByteBuffer [] gathered = new ByteBuffer[pieces.size()];
+				for (int i = 0; i < gathered.length; i++) {
+					ByteBuffer piece = pieces.get(i);
+					gathered[i] = copiesViews() && piece.isDirect() ? copyOf(piece) : piece;
+				}
+				return gathered;
+			});
+			readLatency.since(started);
+			return value;
+		}
+
+		@Override
+		public AssetFactory factory() {
+			return MemoryMappedAssetFactory.this;
+		}
+		
+	}
+	
+	
+	@Override
 	public Addressable createAddressable() {
 		return new MemoryMappedAddressable();
 	}
 
+	/**
+	 * Creates an addressable for each buffer, in order. Runs of buffers that fit in a block together are 
+	 * written into one reservation in a single pass, already holding their reference, and become visible 
+	 * all at once. Anything that will be compressed or chunked is created the usual way.
+	 */
+	@Override
+	public List<Addressable> createAddressables(List<ByteBuffer> data) {
+		if (!data.isEmpty())
+			admit();
+		long started = System.nanoTime();
+		List<Addressable> addressables = whenOpen(()->{
+			List<Addressable> created = new ArrayList<Addressable>(data.size());
+			int i = 0;
+			while (i < data.size()) {
+				if (!fitsInBatch(data.get(i))) {
+					MemoryMappedAddressable addressable = new MemoryMappedAddressable();
+					addressable.store(data.get(i));
+					created.add(addressable);
+					i++;
+					continue;
+				}
+				int j = i;
+				long length = 0;
+				while (j < data.size() && fitsInBatch(data.get(j)) && length + data.get(j).limit() + 16 <= BLOCK_MAX) 
+					length += data.get(j++).limit() + 8;
+				long physicalOffset = writeBatch(data.subList(i, j), (int)length);
+				for (; i < j; i++) {
+					MemoryMappedAddressable addressable = new MemoryMappedAddressable();
+					addressable.size = data.get(i).limit();
+					addressable.physicalOffset = physicalOffset;
+					physicalOffset += addressable.size + 8;
+					created.add(addressable);
+				}
+			}
+			return created;
+		});
+		writeLatency.since(started);
+		return addressables;
+	}
+
+	/** @return whether data can go in a batch as a plain slice */
+	private boolean fitsInBatch(ByteBuffer data) {
+		return data != null 
+				&& !deduplicate
+				&& data.limit() > 0 
+				&& data.limit() <= maxSlicePayload()
+				&& (codec == null || compressionThreshold <= 0 || data.limit() < compressionThreshold);
+	}
+
+	/**
+	 * writes each buffer as a slice with a reference count of 1, back to back in a fresh reservation of length 
+	 * bytes (headers included). the header of the first slice goes in last, since until then the reservation 
+	 * header in its place hides the whole batch.
+	 * @return the offset of the first slice
+	 */
+	private long writeBatch(List<ByteBuffer> data, int length) {
+		Reservation fresh = reserve(length);
+		ByteBuffer target = assertBlock(fresh.blockNumber).duplicate();
+		long physicalOffset = fresh.start;
+		int offsetInBlock = (int)(fresh.start - fresh.blockStart);
+		target.putInt(offsetInBlock + length, (int)(fresh.end - fresh.start - length));
+		target.putInt(offsetInBlock + length + 4, 0);
+		for (int k = 0; k < data.size(); k++) {
+			ByteBuffer source = data.get(k).duplicate();
+			source.position(0);
+			if (k > 0) {
+				target.putInt(offsetInBlock, source.limit() + 8);
+				target.putInt(offsetInBlock + 4, 1);
+			}
+			target.position(offsetInBlock + 8);
+			target.put(source);
+			offsetInBlock += source.limit() + 8;
+		}
+		offsetInBlock = (int)(fresh.start - fresh.blockStart);
+		target.putInt(offsetInBlock, data.get(0).limit() + 8);
+		target.putInt(offsetInBlock + 4, 1);
+		markDirty(physicalOffset, length + 8);
+		liveBytes.add(length);
+		// what is left over is as good as any other reservation
+		fresh.cursor.set(fresh.start + length);
+		keepBetter(reservation.get(), fresh);
+		return physicalOffset;
+	}
+
 
 }
@@ -0,0 +1,365 @@
+package com.ddougher.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Online backup of a MemoryMappedAssetFactory, and the stream format that replication ships in as well.
+ *
+ * a backup pins the file the low watermark is in (reclaim() leaves it and everything after it alone until the
+ * copy is done) and copies from there to the high watermark straight from the block files with transferTo,
+ * writing a checkpoint beside the copy so recover() can open it. writes that were under way as they were
+ * copied are simply incomplete in the copy. an incremental backup copies only what was written since the
+ * previous one, plus the reference counts of everything older. every backup carries the forwards as they
+ * were when it started, since once a compacted file is gone they are the only record of where its slices
+ * went.
+ *
+ * the copy goes to a Sink: either a set of directories laid out the way the store itself is, or a stream of
+ * a header and then records of offset, length and bytes, which restore() turns back into directories.
+ */
+final class MemoryMappedBackup {
+
+	/** the first four bytes of a backup stream */
+	static final int MAGIC = 0x4D4D4142;
+	/** magic, block size, stripes, reservation size, incremental, low and high watermark */
+	static final int HEADER_SIZE = 4+4+4+4+1+8+8;
+	/** offset and length */
+	static final int RECORD_SIZE = 8+4;
+	/** the offset of the record holding the forwards snapshot */
+	static final long FORWARDS_RECORD = -2;
+	/** the offset of the record that ends a stream */
+	static final long END_RECORD = -1;
+
+	private final MemoryMappedAssetFactory factory;
+
+	MemoryMappedBackup(MemoryMappedAssetFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * pins the files from the low watermark on, then copies from the start of the low watermark's block (so
+	 * recover() has an unbroken chain of headers to walk) to the high watermark. writes carry on while this
+	 * happens, so the copy is fuzzy: anything unfinished as it was copied is incomplete in the copy, and is
+	 * discarded when it is recovered. since reservations still being written into can only be after resumeFrom,
+	 * the next incremental backup starts again there.
+	 */
+	BackupReport backup(Sink sink, BackupReport since) throws IOException {
+		long started = System.currentTimeMillis();
+		int blockMax = factory.blockMax(), stripes = factory.stripes();
+		Object pin = new Object();
+		ByteBuffer [] forwards = new ByteBuffer[1];
+		long [] range = factory.whenOpen(()->{
+			factory.checkpointRefCounts();
+			long lwm = factory.pin(pin);
+			// taken before the high watermark, so every target it names is in the copy
+			forwards[0] = factory.forwardsSnapshot();
+			long hwm = factory.highWatermark();
+			return new long [] { lwm, hwm, factory.oldestUnfinished(hwm) };
+		});
+		long lwm = range[0], hwm = range[1], resumeFrom = range[2];
+		try (Sources sources = new Sources(factory)) {
+			boolean incremental = since != null && !factory.reusesHoles() && since.blockMax == blockMax && since.stripes == stripes
+					&& since.highWatermark <= hwm && since.lowWatermark <= lwm;
+			long lwmBlockStart = (lwm/blockMax)*blockMax;
+			long copyFrom = incremental ? Math.max(lwmBlockStart, since.resumeFrom) : lwmBlockStart;
+			sink.begin(incremental, lwm, hwm);
+			long refCounts = incremental ? shipRefCounts(sink, lwmBlockStart, copyFrom) : 0;
+			long copied = 0;
+			for (long from = copyFrom; from < hwm; ) {
+				int blockNumber = (int)(from/blockMax);
+				long to = Math.min(hwm, ((long)blockNumber+1)*blockMax);
+				sink.copy(sources.of(blockNumber), sources.positionOf(from), from, (int)(to-from));
+				copied += to-from;
+				from = to;
+			}
+			sink.forwards(forwards[0]);
+			sink.finish(lwm, hwm);
+			return new BackupReport(incremental, blockMax, stripes, lwm, hwm, resumeFrom, copied, refCounts, System.currentTimeMillis()-started);
+		} finally {
+			factory.unpin(pin);
+		}
+	}
+
+	/**
+	 * sends the reference count of every slice from..to, which older backups may have copied before they
+	 * changed. @return how many were sent
+	 */
+	private long shipRefCounts(Sink sink, long from, long to) throws IOException {
+		int blockMax = factory.blockMax();
+		long shipped = 0;
+		ByteBuffer refCount = ByteBuffer.allocate(4);
+		for (long position = from; position < to; ) {
+			int blockNumber = (int)(position/blockMax);
+			int blockEnd = (int)Math.min(blockMax, to - ((long)blockNumber)*blockMax);
+			int start = (int)(position%blockMax);
+			// read a block at a time, so the walk is not one long operation
+			long [] counts = factory.whenOpen(()->factory.refCountsIn(blockNumber, start, blockEnd));
+			for (int i = 0; i < counts.length; i += 2) {
+				refCount.clear();
+				refCount.putInt((int)counts[i+1]).flip();
+				sink.write(counts[i]+4, refCount);
+			}
+			shipped += counts.length/2;
+			position = ((long)blockNumber)*blockMax + blockEnd;
+		}
+		return shipped;
+	}
+
+	/**
+	 * Writes a stream from a ChannelSink into basePaths, which must be as many as the store that made it had.
+	 * Incremental streams are applied in the order they were taken, on top of the full one.
+	 */
+	static void restore(ReadableByteChannel in, List<String> basePaths) throws IOException {
+		ByteBuffer header = readFully(in, HEADER_SIZE);
+		if (header.getInt() != MAGIC)
+			throw new IOException("Not a backup stream");
+		int blockMax = header.getInt(), stripes = header.getInt(), reservationSize = header.getInt();
+		boolean incremental = header.get() != 0;
+		long lwm = header.getLong(), hwm = header.getLong();
+		if (stripes != basePaths.size())
+			throw new IOException("Backup was taken of "+stripes+" data directories, not "+basePaths.size());
+		try (DirectorySink sink = new DirectorySink(basePaths.stream().map(File::new).toArray(File[]::new), blockMax, reservationSize)) {
+			sink.begin(incremental, lwm, hwm);
+			while (true) {
+				ByteBuffer record = readFully(in, RECORD_SIZE);
+				long physicalOffset = record.getLong();
+				int length = record.getInt();
+				if (physicalOffset == FORWARDS_RECORD)
+					sink.forwards(readFully(in, length));
+				else if (physicalOffset < 0)
+					break;
+				else
+					sink.copy(in, physicalOffset, length);
+			}
+			sink.finish(lwm, hwm);
+		}
+	}
+
+	static ByteBuffer readFully(ReadableByteChannel in, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining())
+			if (in.read(buffer) < 0)
+				throw new EOFException("Backup stream ended early");
+		buffer.flip();
+		return buffer;
+	}
+
+	/** the block files of a store, opened for reading once per file */
+	static final class Sources implements Closeable {
+		final MemoryMappedAssetFactory factory;
+		final Map<Long, FileChannel> channels = new HashMap<Long, FileChannel>();
+
+		Sources(MemoryMappedAssetFactory factory) {
+			this.factory = factory;
+		}
+
+		/** @return a channel to read blockNumber from */
+		FileChannel of(int blockNumber) throws IOException {
+			int stripes = factory.stripes(), stripe = blockNumber%stripes;
+			long key = ((long)blockNumber/40)*stripes + stripe;
+			FileChannel source = channels.get(key);
+			if (source == null)
+				channels.put(key, source = FileChannel.open(factory.stripeFile(stripe, blockNumber/40).toPath(), StandardOpenOption.READ));
+			return source;
+		}
+
+		/** @return where physicalOffset is in the channel of its block */
+		long positionOf(long physicalOffset) {
+			int blockMax = factory.blockMax();
+			return MemoryMappedAssetFactory.positionInFile((int)(physicalOffset/blockMax), factory.stripes(), blockMax) + physicalOffset%blockMax;
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (FileChannel source: channels.values())
+				source.close();
+			channels.clear();
+		}
+	}
+
+	/** where a backup puts what it copies */
+	interface Sink {
+		void begin(boolean incremental, long lwm, long hwm) throws IOException;
+		void copy(FileChannel source, long position, long physicalOffset, int length) throws IOException;
+		void write(long physicalOffset, ByteBuffer data) throws IOException;
+		/** the forwards, as MemoryMappedAssetFactory.forwardsSnapshot() makes them */
+		void forwards(ByteBuffer snapshot) throws IOException;
+		void finish(long lwm, long hwm) throws IOException;
+	}
+
+	/** lays a backup out the way the store itself is laid out, across one directory per stripe */
+	static final class DirectorySink implements Sink, Closeable {
+		final File [] dirs;
+		final int blockMax;
+		final int reservationSize;
+		final Map<Long, FileChannel> targets = new HashMap<Long, FileChannel>();
+
+		DirectorySink(File [] dirs, int blockMax, int reservationSize) {
+			this.dirs = dirs;
+			this.blockMax = blockMax;
+			this.reservationSize = reservationSize;
+		}
+
+		private FileChannel target(int blockNumber) throws IOException {
+			int stripe = blockNumber%dirs.length;
+			long key = ((long)blockNumber/40)*dirs.length + stripe;
+			FileChannel target = targets.get(key);
+			if (target == null)
+				targets.put(key, target = FileChannel.open(new File(dirs[stripe], Integer.toString(blockNumber/40)).toPath(),
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+			return target;
+		}
+
+		private long positionOf(long physicalOffset) {
+			return MemoryMappedAssetFactory.positionInFile((int)(physicalOffset/blockMax), dirs.length, blockMax) + physicalOffset%blockMax;
+		}
+
+		/** a full copy starts from nothing, an incremental one drops the files the low watermark has passed */
+		@Override
+		public void begin(boolean incremental, long lwm, long hwm) throws IOException {
+			int lwmFile = (int)((lwm/blockMax)/40);
+			for (File dir: dirs) {
+				dir.mkdirs();
+				File [] existing = dir.listFiles();
+				if (existing == null)
+					continue;
+				for (File f: existing) {
+					try {
+						if ((!incremental || Integer.parseInt(f.getName()) < lwmFile) && !f.delete())
+							throw new IOException("Could not delete "+f);
+					} catch (NumberFormatException e) {
+					}
+				}
+			}
+		}
+
+		@Override
+		public void copy(FileChannel source, long position, long physicalOffset, int length) throws IOException {
+			FileChannel target = target((int)(physicalOffset/blockMax));
+			target.position(positionOf(physicalOffset));
+			for (long done = 0; done < length; )
+				done += source.transferTo(position + done, length - done, target);
+		}
+
+		/** copies straight off a restore stream */
+		void copy(ReadableByteChannel source, long physicalOffset, int length) throws IOException {
+			FileChannel target = target((int)(physicalOffset/blockMax));
+			long position = positionOf(physicalOffset);
+			// transferFrom moves nothing past the end of the file, as it is in a file the low watermark skipped into
+			if (target.size() < position)
+				target.write(ByteBuffer.allocate(1), position-1);
+			for (long done = 0; done < length; ) {
+				long moved = target.transferFrom(source, position + done, length - done);
+				if (moved <= 0)
+					throw new EOFException("Backup stream ended early");
+				done += moved;
+			}
+		}
+
+		@Override
+		public void write(long physicalOffset, ByteBuffer data) throws IOException {
+			FileChannel target = target((int)(physicalOffset/blockMax));
+			long position = positionOf(physicalOffset);
+			while (data.hasRemaining())
+				position += target.write(data, position);
+		}
+
+		/** replaces the forwards of any earlier backup, since they are always sent whole */
+		@Override
+		public void forwards(ByteBuffer snapshot) throws IOException {
+			MemoryMappedAssetFactory.storeForwards(dirs[0], snapshot);
+		}
+
+		/** fills out the last block, so recover() sees it, and records the watermarks for recover() to start from */
+		@Override
+		public void finish(long lwm, long hwm) throws IOException {
+			int lastBlock = (int)((hwm-1)/blockMax);
+			FileChannel last = target(lastBlock);
+			long end = MemoryMappedAssetFactory.positionInFile(lastBlock, dirs.length, blockMax) + blockMax;
+			if (last.size() < end)
+				last.write(ByteBuffer.allocate(1), end-1);
+			for (FileChannel target: targets.values())
+				target.force(false);
+			MemoryMappedAssetFactory.storeCheckpoint(dirs[0], blockMax, reservationSize, dirs.length, lwm, hwm, (lwm/blockMax)*blockMax);
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (FileChannel target: targets.values())
+				target.close();
+			targets.clear();
+		}
+	}
+
+	/**
+	 * streams a backup as a header (magic, block size, stripes, reservation size, incremental, low and high
+	 * watermark) and then records of offset, length and bytes. the forwards go in a record with an offset of 
+	 * -2, and an offset of -1 ends the stream.
+	 */
+	static final class ChannelSink implements Sink {
+		final WritableByteChannel out;
+		final int blockMax;
+		final int stripes;
+		final int reservationSize;
+
+		ChannelSink(WritableByteChannel out, int blockMax, int stripes, int reservationSize) {
+			this.out = out;
+			this.blockMax = blockMax;
+			this.stripes = stripes;
+			this.reservationSize = reservationSize;
+		}
+
+		private void writeFully(ByteBuffer data) throws IOException {
+			while (data.hasRemaining())
+				out.write(data);
+		}
+
+		private void record(long physicalOffset, int length) throws IOException {
+			ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+			record.putLong(physicalOffset).putInt(length).flip();
+			writeFully(record);
+		}
+
+		@Override
+		public void begin(boolean incremental, long lwm, long hwm) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(blockMax).putInt(stripes).putInt(reservationSize)
+				.put((byte)(incremental ? 1 : 0)).putLong(lwm).putLong(hwm).flip();
+			writeFully(header);
+		}
+
+		@Override
+		public void copy(FileChannel source, long position, long physicalOffset, int length) throws IOException {
+			record(physicalOffset, length);
+			for (long done = 0; done < length; )
+				done += source.transferTo(position + done, length - done, out);
+		}
+
+		@Override
+		public void write(long physicalOffset, ByteBuffer data) throws IOException {
+			record(physicalOffset, data.remaining());
+			writeFully(data);
+		}
+
+		@Override
+		public void forwards(ByteBuffer snapshot) throws IOException {
+			write(FORWARDS_RECORD, snapshot.duplicate());
+		}
+
+		@Override
+		public void finish(long lwm, long hwm) throws IOException {
+			record(END_RECORD, 0);
+		}
+	}
+
+}
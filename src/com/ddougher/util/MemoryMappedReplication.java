@@ -0,0 +1,270 @@
+package com.ddougher.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ddougher.util.MemoryMappedAssetFactory.DirtyRange;
+
+/*
+ * Replication of a MemoryMappedAssetFactory to read only followers.
+ *
+ * since everything is appended, the files are in effect a log, and a leader ships it over a socket in the
+ * format of MemoryMappedBackup: a full copy when a follower connects, and then rounds of whatever has been
+ * marked dirty for that follower since its last round (new slices and changed headers alike), each carrying
+ * the watermarks. the follower writes the ranges into its own blocks and follows the low watermark, deleting
+ * files as the leader does.
+ */
+final class MemoryMappedReplication {
+
+	private final MemoryMappedAssetFactory factory;
+	private final String name;
+	private final long interval;
+	private final String leaderHost;
+	private final int leaderPort;
+	private ServerSocketChannel server;
+	private Thread thread;
+	private volatile boolean running = true;
+	private final Set<Thread> shippers = ConcurrentHashMap.newKeySet();
+	private final Set<SocketChannel> followers = ConcurrentHashMap.newKeySet();
+	/** for each follower, what has been written since its last round */
+	private final List<Map<Integer, DirtyRange>> unshipped = new CopyOnWriteArrayList<Map<Integer, DirtyRange>>();
+	private volatile SocketChannel leaderChannel;
+	private volatile String error;
+	private final AtomicLong rounds = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+
+	private MemoryMappedReplication(MemoryMappedAssetFactory factory, String name, long interval, String leaderHost, int leaderPort) {
+		this.factory = factory;
+		this.name = name;
+		this.interval = interval;
+		this.leaderHost = leaderHost;
+		this.leaderPort = leaderPort;
+	}
+
+	/** @return a leader, accepting followers on port (0 for any free one) and shipping to them every interval millis */
+	static MemoryMappedReplication lead(MemoryMappedAssetFactory factory, String name, int port, long interval) throws IOException {
+		MemoryMappedReplication replication = new MemoryMappedReplication(factory, name, interval, null, 0);
+		replication.server = ServerSocketChannel.open();
+		replication.server.bind(new InetSocketAddress(port));
+		replication.start(replication::acceptFollowers, name+" replication");
+		return replication;
+	}
+
+	/** @return a follower of the leader at host:port */
+	static MemoryMappedReplication follow(MemoryMappedAssetFactory factory, String name, String host, int port) {
+		MemoryMappedReplication replication = new MemoryMappedReplication(factory, name, 0, host, port);
+		replication.start(replication::followLeader, name+" replica");
+		return replication;
+	}
+
+	private void start(Runnable r, String threadName) {
+		thread = new Thread(r, threadName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** @return the port followers connect to, or -1 for a follower */
+	int port() {
+		return server == null ? -1 : server.socket().getLocalPort();
+	}
+
+	/** notes for every follower that length bytes at physicalOffset have been written */
+	void written(long physicalOffset, int length) {
+		for (Map<Integer, DirtyRange> ranges: unshipped)
+			factory.markDirty(ranges, physicalOffset, length);
+	}
+
+	/** stops shipping or following, and waits for the threads to finish */
+	void close() throws IOException, InterruptedException {
+		running = false;
+		// closing the channels is what wakes threads blocked on them
+		if (server != null)
+			server.close();
+		SocketChannel leader = leaderChannel;
+		if (leader != null)
+			leader.close();
+		for (SocketChannel follower: followers)
+			follower.close();
+		thread.interrupt();
+		thread.join();
+		for (Thread shipper: shippers) {
+			shipper.interrupt();
+			shipper.join();
+		}
+	}
+
+	private void acceptFollowers() {
+		while (running) {
+			SocketChannel follower;
+			try {
+				follower = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			Thread shipper = new Thread(()->shipTo(follower), name+" shipper");
+			shipper.setDaemon(true);
+			shippers.add(shipper);
+			shipper.start();
+		}
+	}
+
+	/**
+	 * sends a follower a full copy, and then a round of what has changed every replication interval. writes
+	 * are tracked for the follower from before the copy starts, so nothing written during it is missed.
+	 */
+	private void shipTo(SocketChannel follower) {
+		Map<Integer, DirtyRange> dirty = new ConcurrentHashMap<Integer, DirtyRange>();
+		unshipped.add(dirty);
+		followers.add(follower);
+		try {
+			BackupReport full = new MemoryMappedBackup(factory).backup(sink(follower), null);
+			rounds.incrementAndGet();
+			bytes.addAndGet(full.copiedBytes);
+			while (running) {
+				Thread.sleep(interval);
+				shipRound(follower, dirty);
+			}
+		} catch (IOException | InterruptedException | IllegalStateException e) {
+		} finally {
+			unshipped.remove(dirty);
+			followers.remove(follower);
+			try {
+				follower.close();
+			} catch (IOException e) {
+			}
+			shippers.remove(Thread.currentThread());
+		}
+	}
+
+	private MemoryMappedBackup.ChannelSink sink(SocketChannel follower) {
+		return new MemoryMappedBackup.ChannelSink(follower, factory.blockMax(), factory.stripes(), factory.reservationSize());
+	}
+
+	/** ships the ranges written since the last round, straight from the files */
+	private void shipRound(SocketChannel follower, Map<Integer, DirtyRange> dirty) throws IOException {
+		int blockMax = factory.blockMax();
+		Object pin = new Object();
+		ByteBuffer [] forwards = new ByteBuffer[1];
+		// taken before the high watermark, so every target it names is shipped in this round or before
+		long [] watermarks = factory.whenOpen(()->{
+			forwards[0] = factory.forwardsSnapshot();
+			return new long [] { factory.pin(pin), factory.highWatermark() };
+		});
+		try (MemoryMappedBackup.Sources sources = new MemoryMappedBackup.Sources(factory)) {
+			MemoryMappedBackup.ChannelSink sink = sink(follower);
+			sink.begin(true, watermarks[0], watermarks[1]);
+			int lwmBlock = (int)(watermarks[0]/blockMax);
+			for (Map.Entry<Integer, DirtyRange> entry: dirty.entrySet()) {
+				int blockNumber = entry.getKey();
+				if (blockNumber < lwmBlock) {
+					dirty.remove(blockNumber);
+					continue;
+				}
+				long range = entry.getValue().take();
+				if (range == DirtyRange.CLEAN)
+					continue;
+				int from = (int)(range>>>32), to = (int)range;
+				long physicalOffset = ((long)blockNumber)*blockMax + from;
+				sink.copy(sources.of(blockNumber), sources.positionOf(physicalOffset), physicalOffset, to-from);
+				bytes.addAndGet(to-from);
+			}
+			sink.forwards(forwards[0]);
+			sink.finish(watermarks[0], watermarks[1]);
+			rounds.incrementAndGet();
+		} finally {
+			factory.unpin(pin);
+		}
+	}
+
+	/** connects to the leader and applies what it sends, reconnecting a second after the connection drops */
+	private void followLeader() {
+		while (running) {
+			try (SocketChannel leader = SocketChannel.open(new InetSocketAddress(leaderHost, leaderPort))) {
+				leaderChannel = leader;
+				error = null;
+				while (running)
+					applyRound(leader);
+			} catch (IOException | RuntimeException e) {
+				if (!running)
+					return;
+				error = e.toString();
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			} finally {
+				leaderChannel = null;
+			}
+		}
+	}
+
+	/**
+	 * applies one round from the leader, then takes on its forwards and watermarks. the records are read off the socket
+	 * a piece at a time, and only copied into the blocks inside an operation, so a slow leader never holds
+	 * up unmapping.
+	 */
+	private void applyRound(ReadableByteChannel in) throws IOException {
+		ByteBuffer header = MemoryMappedBackup.readFully(in, MemoryMappedBackup.HEADER_SIZE);
+		if (header.getInt() != MemoryMappedBackup.MAGIC)
+			throw new IOException("Not a replication stream");
+		if (header.getInt() != factory.blockMax())
+			throw new IOException("The leader's block size is not "+factory.blockMax());
+		if (header.getInt() != factory.stripes())
+			throw new IOException("The leader's stripe count is not "+factory.stripes());
+		if (header.getInt() != factory.reservationSize())
+			throw new IOException("The leader's reservation size is not "+factory.reservationSize());
+		header.get();
+		long lwm = header.getLong(), hwm = header.getLong();
+		ByteBuffer piece = ByteBuffer.allocate(1024*1024), forwards = null;
+		while (true) {
+			ByteBuffer record = MemoryMappedBackup.readFully(in, MemoryMappedBackup.RECORD_SIZE);
+			long physicalOffset = record.getLong();
+			int length = record.getInt();
+			if (physicalOffset == MemoryMappedBackup.FORWARDS_RECORD) {
+				forwards = MemoryMappedBackup.readFully(in, length);
+				continue;
+			}
+			if (physicalOffset < 0)
+				break;
+			for (int done = 0; done < length; ) {
+				piece.clear().limit(Math.min(piece.capacity(), length - done));
+				while (piece.hasRemaining())
+					if (in.read(piece) < 0)
+						throw new EOFException("Leader went away");
+				piece.flip();
+				factory.applyAt(physicalOffset + done, piece);
+				done += piece.limit();
+			}
+			bytes.addAndGet(length);
+		}
+		// before the low watermark moves, since it may delete the files the forwards lead away from
+		if (forwards != null)
+			factory.followForwards(forwards);
+		factory.followWatermarks(lwm, hwm);
+		rounds.incrementAndGet();
+	}
+
+	ReplicationReport report(long lowWatermark, long highWatermark) {
+		return new ReplicationReport(
+				leaderHost != null,
+				leaderHost != null ? (leaderChannel == null ? 0 : 1) : followers.size(),
+				rounds.get(),
+				bytes.get(),
+				lowWatermark,
+				highWatermark,
+				error);
+	}
+
+}
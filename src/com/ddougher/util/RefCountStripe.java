@@ -0,0 +1,86 @@
+package com.ddougher.util;
+
+/*
+ * One stripe of the reference count side table of a MemoryMappedAssetFactory: offsets map to counts by open
+ * addressing, with 0 (never a slice) marking an empty slot. The stripe is also the header lock of the offsets
+ * that hash to it, and is only touched holding it.
+ */
+final class RefCountStripe {
+	private static final long [] NO_KEYS = new long[0];
+	private static final int [] NO_COUNTS = new int[0];
+	long [] keys = NO_KEYS;
+	int [] counts = NO_COUNTS;
+	int size;
+
+	private int home(long key, int mask) {
+		return (int)((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+	}
+
+	/** @return the count of key, or 0 if it has none */
+	int get(long key) {
+		int mask = keys.length - 1;
+		if (mask < 0)
+			return 0;
+		for (int i = home(key, mask); keys[i] != 0; i = (i+1) & mask)
+			if (keys[i] == key)
+				return counts[i];
+		return 0;
+	}
+
+	void put(long key, int count) {
+		if ((size+1)*4 > keys.length*3)
+			grow();
+		int mask = keys.length - 1;
+		int i = home(key, mask);
+		for (; keys[i] != 0; i = (i+1) & mask) {
+			if (keys[i] == key) {
+				counts[i] = count;
+				return;
+			}
+		}
+		keys[i] = key;
+		counts[i] = count;
+		size++;
+	}
+
+	void remove(long key) {
+		int mask = keys.length - 1;
+		if (mask < 0)
+			return;
+		int i = home(key, mask);
+		while (keys[i] != key) {
+			if (keys[i] == 0)
+				return;
+			i = (i+1) & mask;
+		}
+		// shift back whatever would no longer be found past the hole
+		for (int j = (i+1) & mask; keys[j] != 0; j = (j+1) & mask) {
+			int k = home(keys[j], mask);
+			if (i <= j ? (i < k && k <= j) : (i < k || k <= j))
+				continue;
+			keys[i] = keys[j];
+			counts[i] = counts[j];
+			i = j;
+		}
+		keys[i] = 0;
+		counts[i] = 0;
+		size--;
+	}
+
+	void clear() {
+		keys = NO_KEYS;
+		counts = NO_COUNTS;
+		size = 0;
+	}
+
+	private void grow() {
+		long [] oldKeys = keys;
+		int [] oldCounts = counts;
+		keys = new long[Math.max(16, oldKeys.length*2)];
+		counts = new int[keys.length];
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldKeys[i] != 0)
+				put(oldKeys[i], oldCounts[i]);
+	}
+}
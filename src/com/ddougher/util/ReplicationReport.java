@@ -0,0 +1,33 @@
+package com.ddougher.util;
+
+/*
+ * How replication of a MemoryMappedAssetFactory is going, from the point of view of a leader or of a follower.
+ */
+public final class ReplicationReport {
+	public final boolean follower;
+	/** followers connected to a leader, or 1 if a follower is connected to its leader */
+	public final int connections;
+	/** rounds shipped by a leader (to all its followers), or applied by a follower */
+	public final long rounds;
+	public final long bytes;
+	public final long lowWatermark;
+	public final long highWatermark;
+	/** why a follower last lost its leader, or null */
+	public final String error;
+
+	ReplicationReport(boolean follower, int connections, long rounds, long bytes, long lowWatermark, long highWatermark, String error) {
+		this.follower = follower;
+		this.connections = connections;
+		this.rounds = rounds;
+		this.bytes = bytes;
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+		this.error = error;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("(Follower:%b, Connections:%d, Rounds:%d, Bytes:%d, LWM:%d, HWM:%d, Error:%s)", 
+				follower, connections, rounds, bytes, lowWatermark, highWatermark, error);
+	}
+}
@@ -0,0 +1,569 @@
+package com.ddougher.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * An AssetFactory that keeps a bounded, in memory hot tier of values in front of a cold tier (normally a
+ * MemoryMappedAssetFactory), so the reads of a working set that fits in memory never page fault.
+ *
+ * each addressable here holds an addressable of the cold tier, and, while it is resident, an immutable heap
+ * copy of its value. a set only replaces the heap copy and marks it dirty, so a value set many times while
+ * it is hot reaches the cold tier once, when it is evicted or flush()ed. a read that misses loads the value
+ * from the cold tier and offers it to the hot tier.
+ *
+ * what stays resident is decided much as W-TinyLFU does it. new values go into a small LRU window, and as
+ * they fall out of it they compete for a place in the main LRU with its least recently used value, the one
+ * seen more often by a frequency sketch winning. the sketch halves its counts every so often, so what was
+ * popular once does not stay in forever. reads that find their value resident record themselves in a lossy
+ * buffer rather than waiting on the policy's lock, which is drained by whoever next holds it.
+ *
+ * an evicted value stays visible through its addressable until it has been written back, so a read never
+ * sees the cold tier before it is up to date. locks are always taken addressable first, then policy.
+ *
+ * a value set here is only durable once it has reached the cold tier, by being evicted, flush()ed or
+ * close()d, so whatever was set since the last flush() is lost if the process dies first. close() turns away
+ * any further writes, flushes, and then closes the cold tier.
+ */
+public class TieredAssetFactory implements AssetFactory, Closeable {
+
+	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0).asReadOnlyBuffer();
+	private static final int READ_BUFFER_SIZE = 256;
+
+	private final AssetFactory cold;
+	private final Policy policy;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong coalescedWrites = new AtomicLong();
+	private final AtomicLong writtenBack = new AtomicLong();
+	/** writes (and admissions, which can write back) under way, which close() waits out */
+	private final LongAdder inFlight = new LongAdder();
+	private volatile boolean closed;
+
+	/**
+	 * @param cold where values live when they are not hot, and where they are written back to
+	 * @param hotCapacity the bytes of values to keep in memory at most
+	 */
+	public TieredAssetFactory(AssetFactory cold, long hotCapacity) {
+		if (hotCapacity <= 0)
+			throw new IllegalArgumentException("The hot tier needs a capacity above 0 bytes");
+		this.cold = cold;
+		this.policy = new Policy(hotCapacity);
+	}
+
+	/** a value held in the hot tier, never changed once made */
+	private static final class Entry {
+		final ByteBuffer data;
+		final boolean dirty;
+
+		Entry(ByteBuffer data, boolean dirty) {
+			this.data = data;
+			this.dirty = dirty;
+		}
+
+		ByteBuffer view() {
+			return data.duplicate();
+		}
+	}
+
+	private static Entry copyOf(ByteBuffer data, boolean dirty) {
+		ByteBuffer source = data.duplicate();
+		source.position(0);
+		ByteBuffer copy = ByteBuffer.allocate(source.limit());
+		copy.put(source).flip();
+		return new Entry(copy.asReadOnlyBuffer(), dirty);
+	}
+
+	/**
+	 * a count-min sketch of how often each addressable was seen, 4 bits a counter, 4 counters a key.
+	 * every time the additions reach the sample size, all counts are halved.
+	 */
+	private static final class FrequencySketch {
+		final long [] table;
+		final int sampleSize;
+		int additions;
+
+		FrequencySketch(int expectedEntries) {
+			int size = Integer.highestOneBit(Math.max(64, Math.min(1 << 24, expectedEntries)) - 1) << 1;
+			table = new long[size];
+			sampleSize = 10 * size;
+		}
+
+		private int indexOf(int hash, int i) {
+			long h = (hash + (long)i * 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+			h ^= h >>> 31;
+			return (int)h & (table.length - 1);
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				int index = indexOf(hash, i);
+				int shift = ((hash >>> (i << 3)) & 15) << 2;
+				if (((table[index] >>> shift) & 15) < 15) {
+					table[index] += 1L << shift;
+					added = true;
+				}
+			}
+			if (added && ++additions == sampleSize) {
+				for (int i = 0; i < table.length; i++)
+					table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+				additions /= 2;
+			}
+		}
+
+		int frequency(int hash) {
+			int frequency = 15;
+			for (int i = 0; i < 4; i++) {
+				int shift = ((hash >>> (i << 3)) & 15) << 2;
+				frequency = Math.min(frequency, (int)((table[indexOf(hash, i)] >>> shift) & 15));
+			}
+			return frequency;
+		}
+	}
+
+	private static int hashOf(Object o) {
+		int h = System.identityHashCode(o);
+		return h ^ (h >>> 16);
+	}
+
+	/** which addressables are resident, and the bytes they take */
+	private final class Policy {
+		final ReentrantLock lock = new ReentrantLock();
+		final long capacity;
+		final long windowCapacity;
+		final LinkedHashMap<TieredAddressable, Integer> window = new LinkedHashMap<TieredAddressable, Integer>(16, 0.75f, true);
+		final LinkedHashMap<TieredAddressable, Integer> main = new LinkedHashMap<TieredAddressable, Integer>(16, 0.75f, true);
+		final FrequencySketch sketch;
+		final AtomicReferenceArray<TieredAddressable> readBuffer = new AtomicReferenceArray<TieredAddressable>(READ_BUFFER_SIZE);
+		final AtomicInteger readCursor = new AtomicInteger();
+		long windowBytes;
+		long mainBytes;
+		long admitted;
+		long rejected;
+		long evicted;
+
+		Policy(long capacity) {
+			this.capacity = capacity;
+			this.windowCapacity = Math.max(1, capacity / 100);
+			this.sketch = new FrequencySketch((int)Math.min(Integer.MAX_VALUE, capacity / 64));
+		}
+
+		/** notes a read of a resident addressable, without waiting if the policy is busy */
+		void recordRead(TieredAddressable a) {
+			if (lock.tryLock()) {
+				try {
+					drainReads();
+					touch(a);
+				} finally {
+					lock.unlock();
+				}
+			} else {
+				readBuffer.lazySet(readCursor.getAndIncrement() & (READ_BUFFER_SIZE - 1), a);
+			}
+		}
+
+		private void drainReads() {
+			for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+				TieredAddressable a = readBuffer.getAndSet(i, null);
+				if (a != null)
+					touch(a);
+			}
+		}
+
+		private void touch(TieredAddressable a) {
+			sketch.increment(hashOf(a));
+			if (window.get(a) == null)
+				main.get(a);
+		}
+
+		boolean isResident(TieredAddressable a) {
+			lock.lock();
+			try {
+				return window.containsKey(a) || main.containsKey(a);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/** makes a resident with length bytes, or updates its length if it already is */
+		List<TieredAddressable> admit(TieredAddressable a, int length) {
+			lock.lock();
+			try {
+				drainReads();
+				sketch.increment(hashOf(a));
+				Integer old = main.get(a);
+				if (old != null) {
+					main.put(a, length);
+					mainBytes += length - old;
+				} else {
+					old = window.put(a, length);
+					windowBytes += length - (old == null ? 0 : old);
+				}
+				return evict();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void remove(TieredAddressable a) {
+			lock.lock();
+			try {
+				Integer length = window.remove(a);
+				if (length != null)
+					windowBytes -= length;
+				length = main.remove(a);
+				if (length != null)
+					mainBytes -= length;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/** moves what has fallen out of the window into main, where it has to beat main's eldest to stay */
+		private List<TieredAddressable> evict() {
+			List<TieredAddressable> victims = Collections.emptyList();
+			while (windowBytes > windowCapacity && !window.isEmpty()) {
+				Map.Entry<TieredAddressable, Integer> eldest = window.entrySet().iterator().next();
+				TieredAddressable candidate = eldest.getKey();
+				int length = eldest.getValue();
+				window.remove(candidate);
+				windowBytes -= length;
+				int candidateFrequency = sketch.frequency(hashOf(candidate));
+				while (mainBytes + length > capacity - windowCapacity && !main.isEmpty()) {
+					Map.Entry<TieredAddressable, Integer> victim = main.entrySet().iterator().next();
+					if (candidateFrequency <= sketch.frequency(hashOf(victim.getKey())))
+						break;
+					main.remove(victim.getKey());
+					mainBytes -= victim.getValue();
+					victims = addTo(victims, victim.getKey());
+				}
+				if (mainBytes + length <= capacity - windowCapacity) {
+					main.put(candidate, length);
+					mainBytes += length;
+					admitted++;
+				} else {
+					victims = addTo(victims, candidate);
+					rejected++;
+				}
+			}
+			while (mainBytes > capacity - windowCapacity && !main.isEmpty()) {
+				// a resident value grew
+				Map.Entry<TieredAddressable, Integer> victim = main.entrySet().iterator().next();
+				main.remove(victim.getKey());
+				mainBytes -= victim.getValue();
+				victims = addTo(victims, victim.getKey());
+			}
+			evicted += victims.size();
+			return victims;
+		}
+
+		private List<TieredAddressable> addTo(List<TieredAddressable> victims, TieredAddressable a) {
+			if (victims.isEmpty())
+				victims = new ArrayList<TieredAddressable>();
+			victims.add(a);
+			return victims;
+		}
+
+		List<TieredAddressable> resident() {
+			lock.lock();
+			try {
+				List<TieredAddressable> resident = new ArrayList<TieredAddressable>(window.keySet());
+				resident.addAll(main.keySet());
+				return resident;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/** @return true, counting the caller in flight until it calls leave(), unless the factory is closed */
+	private boolean enter() {
+		inFlight.increment();
+		if (closed) {
+			inFlight.decrement();
+			return false;
+		}
+		return true;
+	}
+
+	private void enterToWrite() {
+		if (!enter())
+			throw new IllegalStateException("Factory is closed");
+	}
+
+	private void leave() {
+		inFlight.decrement();
+	}
+
+	/** writes what was evicted back to the cold tier, unless it was made resident again in the meantime */
+	private void writeBack(List<TieredAddressable> victims) {
+		for (TieredAddressable victim: victims) {
+			synchronized (victim) {
+				Entry e = victim.hot;
+				if (e == null || policy.isResident(victim))
+					continue;
+				if (e.dirty) {
+					victim.cold.set(e.view());
+					writtenBack.incrementAndGet();
+				}
+				victim.hot = null;
+			}
+		}
+	}
+
+	private class TieredAddressable implements Addressable {
+		final Addressable cold;
+		volatile Entry hot;
+		/** changed by every set, so a read that missed knows whether what it loaded is still current */
+		volatile long version;
+
+		TieredAddressable(Addressable cold) {
+			this.cold = cold;
+		}
+
+		private void install(Entry e) {
+			enterToWrite();
+			try {
+				List<TieredAddressable> victims;
+				synchronized (this) {
+					writes.incrementAndGet();
+					Entry old = hot;
+					if (old != null && old.dirty)
+						coalescedWrites.incrementAndGet();
+					version++;
+					if (e.data.limit() > policy.capacity - policy.windowCapacity) {
+						// too big to ever be resident, so it goes straight through
+						cold.set(e.view());
+						hot = null;
+						policy.remove(this);
+						return;
+					}
+					hot = e;
+					victims = policy.admit(this, e.data.limit());
+				}
+				writeBack(victims);
+			} finally {
+				leave();
+			}
+		}
+
+		@Override
+		public void set(ByteBuffer data) {
+			if (data == null) {
+				free();
+				return;
+			}
+			install(copyOf(data, true));
+		}
+
+		@Override
+		public void set(Addressable src) {
+			TieredAddressable s = (TieredAddressable)src;
+			Entry e = s.hot;
+			if (e != null) {
+				// entries never change, so the data can be shared
+				install(new Entry(e.data, true));
+				return;
+			}
+			enterToWrite();
+			try {
+				synchronized (this) {
+					version++;
+					cold.set(s.cold);
+					hot = null;
+					policy.remove(this);
+				}
+			} finally {
+				leave();
+			}
+		}
+
+		@Override
+		public void append(Addressable a) {
+			ByteBuffer head = get();
+			ByteBuffer tail = a.get();
+			ByteBuffer joined = ByteBuffer.allocate(head.limit() + tail.limit());
+			joined.put(head).put(tail).flip();
+			install(new Entry(joined.asReadOnlyBuffer(), true));
+		}
+
+		@Override
+		public void free() {
+			enterToWrite();
+			try {
+				synchronized (this) {
+					version++;
+					hot = null;
+					policy.remove(this);
+					cold.free();
+				}
+			} finally {
+				leave();
+			}
+		}
+
+		@Override
+		public AssetFactory factory() {
+			return TieredAssetFactory.this;
+		}
+
+		@Override
+		public int size() {
+			Entry e = hot;
+			return e == null ? cold.size() : e.data.limit();
+		}
+
+		@Override
+		public ByteBuffer get() {
+			Entry e = hot;
+			if (e != null) {
+				hits.incrementAndGet();
+				policy.recordRead(this);
+				return e.view();
+			}
+			misses.incrementAndGet();
+			long loadedVersion = version;
+			ByteBuffer data = cold.get();
+			if (data == null || data.limit() == 0)
+				return EMPTY_BUFFER;
+			e = copyOf(data, false);
+			// once closed, nothing more is admitted, since admitting can write back
+			if (e.data.limit() > policy.capacity - policy.windowCapacity || !enter())
+				return e.view();
+			try {
+				List<TieredAddressable> victims = Collections.emptyList();
+				synchronized (this) {
+					if (hot == null && version == loadedVersion) {
+						hot = e;
+						victims = policy.admit(this, e.data.limit());
+					}
+				}
+				writeBack(victims);
+			} finally {
+				leave();
+			}
+			return e.view();
+		}
+	}
+
+	@Override
+	public Addressable createAddressable() {
+		enterToWrite();
+		try {
+			return new TieredAddressable(cold.createAddressable());
+		} finally {
+			leave();
+		}
+	}
+
+	/**
+	 * writes every dirty resident value back to the cold tier, leaving it resident. until then, a value set
+	 * here is only in memory.
+	 */
+	public void flush() {
+		for (TieredAddressable a: policy.resident()) {
+			synchronized (a) {
+				Entry e = a.hot;
+				if (e != null && e.dirty) {
+					a.cold.set(e.view());
+					writtenBack.incrementAndGet();
+					a.hot = new Entry(e.data, false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * turns away any further writes, waits out those under way, writes every dirty resident value back, and
+	 * closes the cold tier if it can be closed. values still resident can be read afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		while (inFlight.sum() != 0)
+			Thread.yield();
+		flush();
+		if (cold instanceof Closeable)
+			((Closeable)cold).close();
+	}
+
+	/** @return the addressable of the cold tier behind a */
+	Addressable coldOf(Addressable a) {
+		return ((TieredAddressable)a).cold;
+	}
+
+	/** @return the cold tier */
+	public AssetFactory cold() {
+		return cold;
+	}
+
+	public TierReport tierStats() {
+		policy.lock.lock();
+		try {
+			return new TierReport(hits.get(), misses.get(), writes.get(), coalescedWrites.get(), writtenBack.get(),
+					policy.admitted, policy.rejected, policy.evicted, policy.window.size() + policy.main.size(),
+					policy.windowBytes + policy.mainBytes);
+		} finally {
+			policy.lock.unlock();
+		}
+	}
+
+	public static final class TierReport {
+		/** reads answered from the hot tier */
+		public final long hits;
+		/** reads that had to go to the cold tier */
+		public final long misses;
+		public final long writes;
+		/** writes that replaced a value before it reached the cold tier */
+		public final long coalescedWrites;
+		/** values written to the cold tier */
+		public final long writtenBack;
+		/** values that made it from the window into main */
+		public final long admitted;
+		/** values that lost to main's eldest as they left the window */
+		public final long rejected;
+		public final long evicted;
+		public final long residentValues;
+		public final long residentBytes;
+
+		TierReport(long hits, long misses, long writes, long coalescedWrites, long writtenBack, long admitted,
+				long rejected, long evicted, long residentValues, long residentBytes) {
+			this.hits = hits;
+			this.misses = misses;
+			this.writes = writes;
+			this.coalescedWrites = coalescedWrites;
+			this.writtenBack = writtenBack;
+			this.admitted = admitted;
+			this.rejected = rejected;
+			this.evicted = evicted;
+			this.residentValues = residentValues;
+			this.residentBytes = residentBytes;
+		}
+
+		public double hitRatio() {
+			return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("(Hits:%d, Misses:%d, Writes:%d, Coalesced:%d, WrittenBack:%d, Admitted:%d, Rejected:%d, Evicted:%d, Resident:%d values %d bytes)",
+					hits, misses, writes, coalescedWrites, writtenBack, admitted, rejected, evicted, residentValues, residentBytes);
+		}
+	}
+
+}
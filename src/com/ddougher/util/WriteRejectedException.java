@@ -0,0 +1,23 @@
+package com.ddougher.util;
+
+/*
+ * Thrown by MemoryMappedAssetFactory when admission control turns a write away, because reclamation has
+ * fallen past the hard limit or the disk is too close to full. It is thrown before anything is written, so
+ * the store is unchanged and the write can be tried again once the pressure is off.
+ */
+public class WriteRejectedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	/** bytes between the watermarks that were not live, when the write was turned away */
+	public final long unreclaimedBytes;
+	/** usable bytes on the fullest data volume, or -1 if free space is not being watched */
+	public final long freeDiskBytes;
+
+	public WriteRejectedException(String message, long unreclaimedBytes, long freeDiskBytes) {
+		super(message);
+		this.unreclaimedBytes = unreclaimedBytes;
+		this.freeDiskBytes = freeDiskBytes;
+	}
+
+}
@@ -0,0 +1,124 @@
+package com.ddougher.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.ddougher.util.AssetFactory.Addressable;
+
+
+class TestDirectAssetFactory {
+
+	DirectAssetFactory factory;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		factory = new DirectAssetFactory(1_000_000, 100_000);
+	}
+
+	private static ByteBuffer bytes(String s) {
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String string(ByteBuffer b) {
+		byte [] data = new byte[b.limit()];
+		b.duplicate().get(data);
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	void testSemantics() {
+		Addressable a = factory.createAddressable(bytes("hello"));
+		Addressable b = factory.createAddressable(bytes(" world"));
+		assertEquals("hello", string(a.get()));
+		assertEquals(5, a.size());
+
+		Addressable c = factory.createAddressable();
+		c.set(a);
+		a.append(b);
+		assertEquals("hello world", string(a.get()));
+		assertEquals("hello", string(c.get()));
+
+		a.swap(c, null);
+		assertEquals("hello", string(a.get()));
+		assertEquals("hello world", string(c.get()));
+
+		c.resize(4, null);
+		assertEquals("hell", string(c.get()));
+
+		ByteBuffer view = a.get();
+		a.free();
+		b.free();
+		c.free();
+		assertEquals(0, a.size());
+		assertEquals("hello", string(view));
+		assertEquals(0, factory.arenaStats().liveBytes);
+	}
+
+	@Test
+	void testArenasReclaimed() {
+		ByteBuffer data = ByteBuffer.allocate(1000);
+		List<Addressable> held = new ArrayList<Addressable>();
+		for (int i = 0; i < 5000; i++) {
+			held.add(factory.createAddressable(data));
+			if (held.size() > 100)
+				held.remove(0).free();
+		}
+		DirectAssetFactory.ArenaReport report = factory.arenaStats();
+		assertEquals(100_000, report.liveBytes, report.toString());
+		assertTrue(report.droppedArenas >= 45, report.toString());
+		assertTrue(report.allocatedBytes <= 300_000, report.toString());
+
+		Addressable big = factory.createAddressable(ByteBuffer.allocate(250_000));
+		assertEquals(250_000, big.size());
+		big.free();
+		assertThrows(IllegalStateException.class, () -> factory.createAddressable(ByteBuffer.allocate(2_000_000)));
+	}
+
+	@Test
+	void testCapacityComesBackOnFree() {
+		Addressable a = factory.createAddressable(ByteBuffer.allocate(900_000).putInt(0, 1));
+		ByteBuffer copy = a.get();
+		a.free();
+		DirectAssetFactory.ArenaReport report = factory.arenaStats();
+		assertEquals(0, report.allocatedBytes, report.toString());
+		assertThrows(IllegalStateException.class, () -> factory.createAddressable(ByteBuffer.allocate(1_100_000)));
+
+		// the arena was freed on the spot, and what get() returned was a copy, so neither is in the way
+		Addressable b = factory.createAddressable(ByteBuffer.allocate(900_000).putInt(0, 2));
+		assertEquals(1, copy.getInt(0));
+		assertEquals(2, b.get().getInt(0));
+	}
+
+	@Test
+	void testConcurrentSharing() throws Exception {
+		Addressable shared = factory.createAddressable(bytes("shared"));
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int t = 0; t < 8; t++)
+			futures.add(pool.submit(() -> {
+				for (int i = 0; i < 10_000; i++) {
+					Addressable copy = factory.createAddressable();
+					copy.set(shared);
+					assertEquals("shared", string(copy.get()));
+					copy.free();
+				}
+			}));
+		for (Future<?> f: futures)
+			f.get();
+		pool.shutdown();
+		assertEquals(6, factory.arenaStats().liveBytes);
+	}
+
+}
@@ -1,6 +1,11 @@
 package com.ddougher.util;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -9,8 +14,25 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
@@ -146,4 +168,1198 @@ class TestMemoryMappedAssetFactory {
 			assertEquals(s, new String(b,StandardCharsets.UTF_8));
 		}
 	}
+
+	@Test
+	void testConcurrentWriters() throws Exception {
+		int threads = 16, perThread = 5000;
+		Addressable [][] addressables = new Addressable[threads][perThread];
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			Future<?> [] futures = new Future<?>[threads];
+			for (int t = 0; t < threads; t++) {
+				int thread = t;
+				futures[t] = executor.submit(()->{
+					for (int i = 0; i < perThread; i++) {
+						String s = thread + " of " + threads + " wrote " + i + (i%7==0 ? " and then a little bit more to vary the size" : "");
+						addressables[thread][i] = factory.createAddressable(ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)));
+					}
+					// and roll half of them so the low watermark has work to do
+					for (int i = 0; i < perThread; i+=2) 
+						addressables[thread][i].set(addressables[thread][i].get());
+				});
+			}
+			for (Future<?> f: futures)
+				f.get();
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+
+		for (int t = 0; t < threads; t++) {
+			for (int i = 0; i < perThread; i++) {
+				String s = t + " of " + threads + " wrote " + i + (i%7==0 ? " and then a little bit more to vary the size" : "");
+				ByteBuffer buf = addressables[t][i].get();
+				byte [] b = new byte[buf.limit()];
+				buf.get(b);
+				assertEquals(s, new String(b,StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	@Test
+	void testConcurrentReaders() throws Exception {
+		int count = 10000, readers = 8;
+		Addressable [] addressables = new Addressable[count];
+		for (int i = 0; i < count; i++)
+			addressables[i] = factory.createAddressable(ByteBuffer.wrap(("document number " + i).getBytes(StandardCharsets.UTF_8)));
+
+		ExecutorService executor = Executors.newFixedThreadPool(readers+1);
+		try {
+			// one thread keeps rewriting the documents while the others read them
+			Future<?> writer = executor.submit(()->{
+				for (int pass = 0; pass < 5; pass++)
+					for (int i = 0; i < count; i++)
+						addressables[i].set(addressables[i].get());
+			});
+			Future<?> [] futures = new Future<?>[readers];
+			for (int t = 0; t < readers; t++) {
+				futures[t] = executor.submit(()->{
+					for (int pass = 0; pass < 5; pass++) {
+						for (int i = 0; i < count; i++) {
+							ByteBuffer buf = addressables[i].get();
+							byte [] b = new byte[buf.limit()];
+							buf.get(b);
+							assertEquals("document number " + i, new String(b,StandardCharsets.UTF_8));
+						}
+					}
+				});
+			}
+			writer.get();
+			for (Future<?> f: futures)
+				f.get();
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	@Test
+	void testCompactionFreesPinnedFiles() throws Exception {
+		Addressable [] pinned = new Addressable[100];
+		for (int i = 0; i < pinned.length; i++)
+			pinned[i] = factory.createAddressable(ByteBuffer.wrap(("long lived " + i).getBytes(StandardCharsets.UTF_8)));
+
+		// churn enough to fill several 4MB files behind the pinned documents
+		Addressable churn = factory.createAddressable();
+		for (int i = 0; i < 200000; i++)
+			churn.set(ByteBuffer.wrap(("churning through version " + i + " of a document that keeps changing").getBytes(StandardCharsets.UTF_8)));
+		assertTrue(new File("TestData", "0").exists());
+
+		long reclaimed = 0;
+		for (int i = 0; i < 10; i++)
+			reclaimed += factory.compact(Long.MAX_VALUE).reclaimedBytes;
+		assertTrue(reclaimed >= 40 * 100_000, "low watermark should have left the first file");
+		assertEquals(reclaimed, factory.compactionTotals().reclaimedBytes);
+
+		// touch half of them so they repoint, leave the rest to resolve through the forwards
+		for (int i = 0; i < pinned.length; i+=2)
+			assertEquals("long lived " + i, StandardCharsets.UTF_8.decode(pinned[i].get()).toString());
+		factory.close();
+		assertFalse(new File("TestData", "0").exists());
+
+		byte [] sBytes;
+		try (ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				ObjectOutputStream oout = new ObjectOutputStream(bout) ) {
+			oout.writeObject(new Object [] { factory, pinned });
+			oout.flush();
+			sBytes = bout.toByteArray();
+		}
+		try (ByteArrayInputStream bin = new ByteArrayInputStream(sBytes);
+				ObjectInputStream oin = new ObjectInputStream(bin)) {
+			Object [] o = (Object [])oin.readObject();
+			factory = (MemoryMappedAssetFactory)o[0];
+			pinned = (Addressable[])o[1];
+		}
+		for (int i = 0; i < pinned.length; i++)
+			assertEquals("long lived " + i, StandardCharsets.UTF_8.decode(pinned[i].get()).toString());
+		for (int i = 0; i < pinned.length; i++)
+			pinned[i].free();
+	}
+
+	@Test
+	void testRecoveryAfterCrash() throws Exception {
+		File crashed = new File("TestData-crashed");
+		deleteDirectory(crashed);
+		try {
+			int count = 20000;
+			Addressable [] addressables = new Addressable[count];
+			for (int i = 0; i < count; i++)
+				addressables[i] = factory.createAddressable(ByteBuffer.wrap(("survivor " + i).getBytes(StandardCharsets.UTF_8)));
+			for (int i = 0; i < count; i+=2)
+				addressables[i].free();
+			long [] handles = new long[count];
+			for (int i = 1; i < count; i+=2)
+				handles[i] = factory.handleOf(addressables[i]);
+
+			// move the survivors out of the first file, and let it go, before the crash
+			Addressable churn = factory.createAddressable();
+			for (int i = 0; i < 200000; i++)
+				churn.set(ByteBuffer.wrap(("churning through version " + i + " of a document that keeps changing").getBytes(StandardCharsets.UTF_8)));
+			for (int i = 0; i < 10; i++)
+				factory.compact(Long.MAX_VALUE);
+			for (int i = 0; i < 300 && new File("TestData", "0").exists(); i++) {
+				Thread.sleep(50);
+				factory.createAddressable(ByteBuffer.wrap("nudge".getBytes(StandardCharsets.UTF_8))).free();
+			}
+			assertFalse(new File("TestData", "0").exists(), "the compacted file should have been deleted");
+			// compaction retires the reservations, so open one again for recovery to find unfinished
+			factory.createAddressable(ByteBuffer.wrap("in progress".getBytes(StandardCharsets.UTF_8))).free();
+
+			// a copy of the files taken while the factory is still running looks just like a kill -9
+			crashed.mkdirs();
+			for (File f: new File("TestData").listFiles())
+				Files.copy(f.toPath(), new File(crashed, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			MemoryMappedAssetFactory recovered = MemoryMappedAssetFactory.recover(Optional.of("TestData-crashed"), Optional.empty());
+			try {
+				MemoryMappedAssetFactory.RecoveryReport report = recovered.recoveryReport();
+				assertTrue(report.fromCheckpoint);
+				assertEquals(count/2 + 1, report.liveSlices, "the survivors and the churned document");
+				assertTrue(report.discardedSlices > 0, "the open reservation tail should have been discarded");
+				assertTrue(report.highWatermark > count * (8 + "survivor ".length()), "the high watermark should be past everything written");
+				// handles still name where the survivors were before they were moved
+				for (int i = 1; i < count; i+=2)
+					assertEquals("survivor " + i, StandardCharsets.UTF_8.decode(recovered.read(handles[i])).toString());
+
+				// and it keeps working from there
+				Addressable [] more = new Addressable[count];
+				for (int i = 0; i < count; i++)
+					more[i] = recovered.createAddressable(ByteBuffer.wrap(("after recovery " + i).getBytes(StandardCharsets.UTF_8)));
+				for (int i = 0; i < count; i++)
+					assertEquals("after recovery " + i, StandardCharsets.UTF_8.decode(more[i].get()).toString());
+			} finally {
+				recovered.close();
+			}
+		} finally {
+			deleteDirectory(crashed);
+		}
+	}
+
+	@Test
+	void testCheckpointFailureIsRecorded() throws Exception {
+		factory.createAddressable(ByteBuffer.wrap("checkpointed".getBytes(StandardCharsets.UTF_8)));
+		assertEquals(0, factory.reclaimStats().checkpointFailures);
+		// a directory where the checkpoint is written first keeps it from being written at all
+		assertTrue(new File("TestData", "checkpoint.tmp").mkdir());
+		try {
+			factory.close();
+			MemoryMappedAssetFactory.ReclaimReport stats = factory.reclaimStats();
+			assertEquals(1, stats.checkpointFailures, stats.toString());
+			assertNotNull(stats.checkpointError);
+		} finally {
+			new File("TestData", "checkpoint.tmp").delete();
+		}
+	}
+
+	@Test
+	void testStripedDirectories() throws Exception {
+		List<String> paths = Arrays.asList("TestData-0", "TestData-1", "TestData-2");
+		paths.forEach(path->deleteDirectory(new File(path)));
+		try {
+			MemoryMappedAssetFactory striped = new MemoryMappedAssetFactory(paths, Optional.of(100_000));
+			int count = 20000;
+			Addressable [] addressables = new Addressable[count];
+			try {
+				for (int i = 0; i < count; i++)
+					addressables[i] = striped.createAddressable(ByteBuffer.wrap(("striped " + i).getBytes(StandardCharsets.UTF_8)));
+				for (int i = 0; i < count; i++)
+					assertEquals("striped " + i, StandardCharsets.UTF_8.decode(addressables[i].get()).toString());
+				for (String path: paths)
+					assertTrue(new File(path, "0").length() > 0, "every directory should hold some of the blocks");
+				// each stripe only holds its share of the blocks
+				assertTrue(new File("TestData-0", "0").length() < 40L*100_000);
+
+				// free everything and roll past the first file, which should then go from every directory
+				for (int i = 0; i < count; i++)
+					addressables[i].free();
+				Addressable rolling = striped.createAddressable();
+				for (int i = 0; i < 300_000; i++)
+					rolling.set(ByteBuffer.wrap(("rolling " + i).getBytes(StandardCharsets.UTF_8)));
+			} finally {
+				striped.close();
+			}
+			for (String path: paths)
+				assertFalse(new File(path, "0").exists());
+
+			MemoryMappedAssetFactory recovered = MemoryMappedAssetFactory.recover(paths, Optional.empty());
+			try {
+				assertEquals(1, recovered.recoveryReport().liveSlices);
+				Addressable after = recovered.createAddressable(ByteBuffer.wrap("after".getBytes(StandardCharsets.UTF_8)));
+				assertEquals("after", StandardCharsets.UTF_8.decode(after.get()).toString());
+			} finally {
+				recovered.close();
+			}
+		} finally {
+			paths.forEach(path->deleteDirectory(new File(path)));
+		}
+	}
+
+	@Test
+	void testStripedConcurrentWriters() throws Exception {
+		List<String> paths = Arrays.asList("TestData-0", "TestData-1", "TestData-2");
+		paths.forEach(path->deleteDirectory(new File(path)));
+		int blockMax = 8192, writers = 6, rounds = 50;
+		MemoryMappedAssetFactory striped = new MemoryMappedAssetFactory(paths, Optional.of(blockMax));
+		try {
+			// values too big to share a block, so writers that are at it together are in different blocks
+			long [][] handles = new long[rounds][writers];
+			CyclicBarrier barrier = new CyclicBarrier(writers);
+			Thread [] threads = new Thread[writers];
+			AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			for (int t = 0; t < writers; t++) {
+				int writer = t;
+				threads[t] = new Thread(()->{
+					try {
+						for (int round = 0; round < rounds; round++) {
+							byte [] value = new byte[5000];
+							Arrays.fill(value, (byte)(writer*rounds + round));
+							barrier.await();
+							handles[round][writer] = striped.write(ByteBuffer.wrap(value));
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread thread: threads)
+				thread.join();
+			assertNull(failure.get());
+
+			for (int round = 0; round < rounds; round++) {
+				Set<Long> directories = new HashSet<Long>();
+				for (int writer = 0; writer < writers; writer++) {
+					long offset = handles[round][writer] & ((1L << 48) - 1);
+					directories.add((offset/blockMax) % paths.size());
+					ByteBuffer value = striped.read(handles[round][writer]);
+					assertEquals(5000, value.remaining());
+					assertEquals((byte)(writer*rounds + round), value.get(4999));
+				}
+				assertTrue(directories.size() > 1, "round " + round + " wrote to only " + directories);
+			}
+		} finally {
+			striped.close();
+			paths.forEach(path->deleteDirectory(new File(path)));
+		}
+	}
+
+	@Test
+	void testGroupCommit() throws Exception {
+		// without group commit the future is already done
+		factory.createAddressable(ByteBuffer.wrap("plain".getBytes(StandardCharsets.UTF_8)));
+		assertTrue(factory.durable().isDone());
+		factory.close();
+
+		factory = new MemoryMappedAssetFactory(Optional.of("TestData"),Optional.of(100_000)).withGroupCommit(5, 64);
+		int threads = 8, perThread = 200;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; t++) {
+				int thread = t;
+				results.add(executor.submit(()->{
+					for (int i = 0; i < perThread; i++) {
+						Addressable a = factory.createAddressable(ByteBuffer.wrap(("durable " + thread + "/" + i).getBytes(StandardCharsets.UTF_8)));
+						factory.durable().get(10, TimeUnit.SECONDS);
+						assertEquals("durable " + thread + "/" + i, StandardCharsets.UTF_8.decode(a.get()).toString());
+					}
+					return null;
+				}));
+			}
+			for (Future<?> f: results)
+				f.get();
+		} finally {
+			executor.shutdown();
+		}
+		factory.sync();
+	}
+
+	@Test
+	void testMappedWindow() throws Exception {
+		factory.close();
+		factory = new MemoryMappedAssetFactory(Optional.of("TestData"),Optional.of(100_000)).withMappedWindow(4);
+		int count = 100_000;
+		Addressable [] addressables = new Addressable[count];
+		for (int i = 0; i < count; i++)
+			addressables[i] = factory.createAddressable(ByteBuffer.wrap(("windowed " + i).getBytes(StandardCharsets.UTF_8)));
+		assertTrue(factory.mappedBlockCount() <= 4);
+
+		// readers all over the store while a writer keeps mapping new blocks
+		ExecutorService executor = Executors.newFixedThreadPool(5);
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (int t = 0; t < 4; t++) {
+				int seed = t;
+				results.add(executor.submit(()->{
+					for (int i = seed; i < count; i += 7)
+						assertEquals("windowed " + i, StandardCharsets.UTF_8.decode(addressables[i].get()).toString());
+					return null;
+				}));
+			}
+			results.add(executor.submit(()->{
+				Addressable rolling = factory.createAddressable();
+				for (int i = 0; i < count; i++)
+					rolling.set(ByteBuffer.wrap(("rolling " + i).getBytes(StandardCharsets.UTF_8)));
+				return null;
+			}));
+			for (Future<?> f: results)
+				f.get();
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(factory.mappedBlockCount() <= 4);
+		factory.sync();
+		for (int i = 0; i < count; i += 997)
+			assertEquals("windowed " + i, StandardCharsets.UTF_8.decode(addressables[i].get()).toString());
+	}
+
+	@Test
+	void testFilesReclaimedWhileOpen() throws Exception {
+		Addressable rolling = factory.createAddressable();
+		// 100k blocks, 40 to a file: well past the first file
+		for (int i = 0; i < 300_000; i++)
+			rolling.set(ByteBuffer.wrap(("rolling " + i).getBytes(StandardCharsets.UTF_8)));
+		MemoryMappedAssetFactory.ReclaimReport report = factory.reclaimStats();
+		for (int i = 0; i < 50 && report.pendingFiles > 0; i++) {
+			Thread.sleep(100);
+			rolling.get();
+			report = factory.reclaimStats();
+		}
+		assertTrue(report.reclaimedFiles > 0, report.toString());
+		assertEquals(0, report.pendingFiles, report.toString());
+		assertFalse(new File("TestData", "0").exists());
+	}
+
+	@Test
+	void testIdleWriterDoesNotPinFiles() throws Exception {
+		factory.close();
+		factory = new MemoryMappedAssetFactory(Optional.of("TestData"),Optional.of(100_000)).withIdleReservationTimeout(100);
+		// a thread that writes once and stops leaves its reservation behind, just ahead of everything else
+		Addressable [] idle = new Addressable[1];
+		Thread writer = new Thread(()->idle[0] = factory.createAddressable(ByteBuffer.wrap("idle".getBytes(StandardCharsets.UTF_8))));
+		writer.start();
+		writer.join();
+		Addressable rolling = factory.createAddressable();
+		for (int i = 0; i < 300_000; i++)
+			rolling.set(ByteBuffer.wrap(("rolling " + i).getBytes(StandardCharsets.UTF_8)));
+		idle[0].free();
+		// the cleaner retires a reservation once it has not moved between two sweeps, here 100ms apart
+		MemoryMappedAssetFactory.ReclaimReport report = factory.reclaimStats();
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (new File("TestData", "0").exists() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+			rolling.get();
+			report = factory.reclaimStats();
+		}
+		assertFalse(new File("TestData", "0").exists(), report.toString());
+		assertEquals("rolling 299999", StandardCharsets.UTF_8.decode(rolling.get()).toString());
+	}
+
+	@Test
+	void testLargeSlices() throws Exception {
+		// ten blocks worth, in one buffer
+		byte [] big = new byte[1_000_000];
+		for (int i = 0; i < big.length; i++)
+			big[i] = (byte)(i * 31);
+		Addressable a = factory.createAddressable(ByteBuffer.wrap(big));
+		assertEquals(big.length, a.length());
+		assertEquals(big.length, a.size());
+		assertEquals(ByteBuffer.wrap(big), a.get());
+
+		// streamed in 64k pieces, and read back a chunk at a time
+		Addressable b = factory.createAddressable();
+		List<ByteBuffer> pieces = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < big.length; i += 65536)
+			pieces.add(ByteBuffer.wrap(big, i, Math.min(65536, big.length - i)).slice());
+		b.set(pieces.iterator());
+		assertEquals(big.length, b.length());
+		int position = 0;
+		for (Iterator<ByteBuffer> chunks = b.chunks(); chunks.hasNext(); ) {
+			ByteBuffer chunk = chunks.next();
+			assertEquals(ByteBuffer.wrap(big, position, chunk.remaining()), chunk);
+			position += chunk.remaining();
+		}
+		assertEquals(big.length, position);
+
+		// appending to a small slice carries on in chunks
+		Addressable c = factory.createAddressable(ByteBuffer.wrap("header:".getBytes(StandardCharsets.UTF_8)));
+		c.append(a);
+		assertEquals(big.length + 7, c.length());
+		ByteBuffer appended = c.get();
+		assertEquals("header:", StandardCharsets.UTF_8.decode((ByteBuffer)appended.duplicate().limit(7)).toString());
+		assertEquals(ByteBuffer.wrap(big), ((ByteBuffer)appended.position(7)).slice());
+
+		// freeing everything releases the chunks too, so the low watermark can get past them
+		a.free();
+		b.free();
+		c.free();
+		Addressable rolling = factory.createAddressable();
+		for (int i = 0; i < 300_000; i++)
+			rolling.set(ByteBuffer.wrap(("rolling " + i).getBytes(StandardCharsets.UTF_8)));
+		factory.close();
+		assertFalse(new File("TestData", "0").exists());
+	}
+
+	@Test
+	void testRopeAppend() throws Exception {
+		// a log that grows by appends, well past a block
+		int count = 3000;
+		byte [] log = new byte[count * 2000];
+		for (int i = 0; i < log.length; i++)
+			log[i] = (byte)(i * 7 + i / 2000);
+		Addressable a = factory.createAddressable();
+		for (int i = 0; i < count; i++) {
+			Addressable entry = factory.createAddressable(ByteBuffer.wrap(log, i * 2000, 2000).slice());
+			a.append(entry);
+			entry.free();
+		}
+		assertEquals(log.length, a.length());
+
+		// the entries were written once, not copied on every append
+		long stored = 0;
+		for (File f: new File("TestData").listFiles())
+			stored += f.length();
+		assertTrue(stored < 3L * log.length, "stored " + stored);
+
+		assertEquals(ByteBuffer.wrap(log), a.get());
+		int position = 0;
+		for (Iterator<ByteBuffer> chunks = a.chunks(); chunks.hasNext(); ) {
+			ByteBuffer chunk = chunks.next();
+			assertEquals(ByteBuffer.wrap(log, position, chunk.remaining()), chunk);
+			position += chunk.remaining();
+		}
+		assertEquals(log.length, position);
+		ByteBuffer [] gathered = a.gather();
+		assertEquals(count, gathered.length);
+		position = 0;
+		for (ByteBuffer piece: gathered) {
+			assertEquals(ByteBuffer.wrap(log, position, piece.remaining()), piece);
+			position += piece.remaining();
+		}
+
+		// small appends are just copied
+		Addressable small = factory.createAddressable(ByteBuffer.wrap("abc".getBytes(StandardCharsets.UTF_8)));
+		small.append(factory.createAddressable(ByteBuffer.wrap("def".getBytes(StandardCharsets.UTF_8))));
+		assertEquals(1, small.gather().length);
+		assertEquals("abcdef", StandardCharsets.UTF_8.decode(small.get()).toString());
+
+		// flattening leaves the same data in far fewer pieces
+		factory.flatten(a);
+		assertEquals(log.length, a.length());
+		assertTrue(a.gather().length < count / 10);
+		assertEquals(ByteBuffer.wrap(log), a.get());
+
+		// and freeing it releases the whole tree
+		a.free();
+		small.free();
+		Addressable rolling = factory.createAddressable();
+		for (int i = 0; i < 300_000; i++)
+			rolling.set(ByteBuffer.wrap(("rolling " + i).getBytes(StandardCharsets.UTF_8)));
+		factory.close();
+		assertFalse(new File("TestData", "0").exists());
+	}
+
+	@Test
+	void testBulkCreate() throws Exception {
+		int count = 100_000;
+		List<ByteBuffer> data = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < count; i++) {
+			if (i % 1000 == 7)
+				data.add(null);
+			else if (i % 1000 == 500)
+				data.add(ByteBuffer.allocate(250_000)); // chunked, so made the usual way
+			else
+				data.add(ByteBuffer.wrap(("bulk " + i).getBytes(StandardCharsets.UTF_8)));
+		}
+		List<Addressable> created = new ArrayList<Addressable>();
+		for (int i = 0; i < count; i += 1000)
+			created.addAll(factory.createAddressables(data.subList(i, i + 1000)));
+		assertEquals(count, created.size());
+		for (int i = 0; i < count; i++) {
+			if (i % 1000 == 7)
+				assertEquals(0, created.get(i).size());
+			else if (i % 1000 == 500)
+				assertEquals(250_000, created.get(i).length());
+			else
+				assertEquals("bulk " + i, StandardCharsets.UTF_8.decode(created.get(i).get()).toString());
+		}
+
+		// each one holds its own reference
+		for (int i = 0; i < count; i += 2)
+			created.get(i).free();
+		for (int i = 1; i < count; i += 2)
+			if (i % 1000 != 7 && i % 1000 != 500)
+				assertEquals("bulk " + i, StandardCharsets.UTF_8.decode(created.get(i).get()).toString());
+
+		// and once they are all gone the low watermark gets past them
+		for (int i = 1; i < count; i += 2)
+			created.get(i).free();
+		Addressable rolling = factory.createAddressable();
+		for (int i = 0; i < 300_000; i++)
+			rolling.set(ByteBuffer.wrap(("rolling " + i).getBytes(StandardCharsets.UTF_8)));
+		factory.close();
+		assertFalse(new File("TestData", "0").exists());
+	}
+
+	@Test
+	void testDeduplication() throws Exception {
+		factory.close();
+		factory = new MemoryMappedAssetFactory(Optional.of("TestData"),Optional.of(100_000)).withDeduplication(true);
+		int count = 10_000;
+		Addressable [] addressables = new Addressable[count];
+		for (int i = 0; i < count; i++)
+			addressables[i] = factory.createAddressable(ByteBuffer.wrap(("version " + (i%10)).getBytes(StandardCharsets.UTF_8)));
+		MemoryMappedAssetFactory.DeduplicationReport report = factory.deduplicationStats();
+		assertEquals(count - 10, report.sharedSlices);
+		assertEquals(10, report.indexedSlices);
+
+		// re-putting an unchanged value writes nothing
+		for (int i = 0; i < count; i++)
+			addressables[i].set(ByteBuffer.wrap(("version " + (i%10)).getBytes(StandardCharsets.UTF_8)));
+		assertEquals(2*count - 10, factory.deduplicationStats().sharedSlices);
+
+		// a shared slice lives on until its last holder lets go
+		for (int i = 0; i < count; i++)
+			if (i%10 == 3 && i != 3)
+				addressables[i].free();
+		assertEquals("version 3", StandardCharsets.UTF_8.decode(addressables[3].get()).toString());
+		assertEquals(10, factory.deduplicationStats().indexedSlices);
+		addressables[3].free();
+		assertEquals(9, factory.deduplicationStats().indexedSlices);
+		addressables[3].set(ByteBuffer.wrap("version 3".getBytes(StandardCharsets.UTF_8)));
+		assertEquals(10, factory.deduplicationStats().indexedSlices);
+		for (int i = 0; i < count; i++)
+			if (i%10 != 3 || i == 3)
+				assertEquals("version " + (i%10), StandardCharsets.UTF_8.decode(addressables[i].get()).toString());
+
+		// anything else is written as usual
+		Addressable different = factory.createAddressable(ByteBuffer.wrap("version 30".getBytes(StandardCharsets.UTF_8)));
+		assertEquals("version 30", StandardCharsets.UTF_8.decode(different.get()).toString());
+	}
+
+	@Test
+	void testHandles() throws Exception {
+		int count = 100_000;
+		long [] handles = new long[count];
+		for (int i = 0; i < count; i++)
+			handles[i] = factory.write(ByteBuffer.wrap(("handle " + i).getBytes(StandardCharsets.UTF_8)));
+		for (int i = 0; i < count; i++) {
+			assertEquals(("handle " + i).length(), factory.length(handles[i]));
+			assertEquals("handle " + i, StandardCharsets.UTF_8.decode(factory.read(handles[i])).toString());
+		}
+		assertEquals(MemoryMappedAssetFactory.NULL_HANDLE, factory.write(null));
+		assertEquals(0, factory.read(MemoryMappedAssetFactory.NULL_HANDLE).limit());
+
+		// handles and addressables hold references on the same footing
+		long copy = factory.acquire(handles[0]);
+		factory.release(handles[0]);
+		assertEquals("handle 0", StandardCharsets.UTF_8.decode(factory.read(copy)).toString());
+		Addressable wrapped = factory.wrap(copy);
+		assertEquals("handle 0", StandardCharsets.UTF_8.decode(wrapped.get()).toString());
+		long unwrapped = factory.handleOf(wrapped);
+		wrapped.free();
+		assertEquals("handle 0", StandardCharsets.UTF_8.decode(factory.read(unwrapped)).toString());
+		handles[0] = unwrapped;
+
+		// lengths too long to pack are looked up
+		long big = factory.write(ByteBuffer.allocate(70_000));
+		assertEquals(70_000, factory.length(big));
+		factory.release(big);
+
+		// handles survive compaction, and refreshing them picks up the new place
+		for (int i = 0; i < count; i += 100) {
+			for (int j = i + 1; j < i + 100; j++)
+				factory.release(handles[j]);
+		}
+		Addressable churn = factory.createAddressable();
+		for (int i = 0; i < 200_000; i++)
+			churn.set(ByteBuffer.wrap(("churning " + i).getBytes(StandardCharsets.UTF_8)));
+		for (int i = 0; i < 10; i++)
+			factory.compact(Long.MAX_VALUE);
+		for (int i = 0; i < count; i += 100) {
+			assertEquals("handle " + i, StandardCharsets.UTF_8.decode(factory.read(handles[i])).toString());
+			handles[i] = factory.refresh(handles[i]);
+			assertEquals("handle " + i, StandardCharsets.UTF_8.decode(factory.read(handles[i])).toString());
+		}
+		for (int i = 0; i < count; i += 100)
+			factory.release(handles[i]);
+		churn.free();
+	}
+
+	@Test
+	void testRefCountTable() throws Exception {
+		factory.close();
+		factory = new MemoryMappedAssetFactory(Optional.of("TestData"),Optional.of(100_000)).withRefCountTable(true);
+		int count = 1000;
+		Addressable [] originals = new Addressable[count];
+		Addressable [][] sharers = new Addressable[count][3];
+		for (int i = 0; i < count; i++) {
+			originals[i] = factory.createAddressable(ByteBuffer.wrap(("counted " + i).getBytes(StandardCharsets.UTF_8)));
+			for (int j = 0; j < 3; j++) {
+				sharers[i][j] = factory.createAddressable();
+				sharers[i][j].set(originals[i]);
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			originals[i].free();
+			sharers[i][0].free();
+			sharers[i][1].free();
+			assertEquals("counted " + i, StandardCharsets.UTF_8.decode(sharers[i][2].get()).toString());
+		}
+
+		// garbage that is only in the side table still lets the low watermark through
+		Addressable rolling = factory.createAddressable();
+		for (int i = 0; i < 300_000; i++) {
+			Addressable shared = factory.createAddressable();
+			rolling.set(ByteBuffer.wrap(("rolling " + i).getBytes(StandardCharsets.UTF_8)));
+			shared.set(rolling);
+			shared.free();
+		}
+		for (int i = 0; i < 10; i++)
+			factory.compact(Long.MAX_VALUE);
+		for (int i = 0; i < count; i++)
+			assertEquals("counted " + i, StandardCharsets.UTF_8.decode(sharers[i][2].get()).toString());
+		rolling.free();
+
+		// and close writes the counts back, so they are there to recover
+		factory.close();
+		assertFalse(new File("TestData", "0").exists());
+		MemoryMappedAssetFactory recovered = MemoryMappedAssetFactory.recover(Optional.of("TestData"), Optional.of(100_000));
+		try {
+			assertEquals(count, recovered.recoveryReport().liveSlices);
+		} finally {
+			recovered.close();
+		}
+	}
+
+	@Test
+	void testHoleReuse() throws Exception {
+		factory.close();
+		factory = new MemoryMappedAssetFactory(Optional.of("TestData"),Optional.of(100_000)).withHoleReuse(true).withExplicitUnmap(true);
+		// one long lived slice at the start keeps the low watermark from ever moving
+		Addressable pinned = factory.createAddressable(ByteBuffer.wrap("pinned".getBytes(StandardCharsets.UTF_8)));
+		int count = 30_000;
+		Addressable [] documents = new Addressable[count];
+		for (int i = 0; i < count; i++)
+			documents[i] = factory.createAddressable(ByteBuffer.wrap(String.format("document %05d version 1", i).getBytes(StandardCharsets.UTF_8)));
+		for (int i = 0; i < count; i++)
+			documents[i].free();
+		long stored = 0;
+		for (File f: new File("TestData").listFiles())
+			stored += f.length();
+
+		// nothing is reading the old versions any more, so new ones go where they were, once the first 
+		// write or two have moved the epoch on past the frees
+		for (int i = 0; i < count; i++)
+			documents[i] = factory.createAddressable(ByteBuffer.wrap(String.format("document %05d version 2", i).getBytes(StandardCharsets.UTF_8)));
+		long storedAfter = 0;
+		for (File f: new File("TestData").listFiles())
+			storedAfter += f.length();
+		assertEquals(stored, storedAfter);
+		MemoryMappedAssetFactory.HoleReport report = factory.holeStats();
+		assertTrue(report.reusedSlices >= count - 2, report.toString());
+		for (int i = 0; i < count; i++)
+			assertEquals(String.format("document %05d version 2", i), StandardCharsets.UTF_8.decode(documents[i].get()).toString());
+		assertEquals("pinned", StandardCharsets.UTF_8.decode(pinned.get()).toString());
+
+		// and when everything goes the low watermark still gets through it all
+		pinned.free();
+		for (Addressable document: documents)
+			document.free();
+		Addressable rolling = factory.createAddressable();
+		for (int i = 0; i < 300_000; i++)
+			rolling.set(ByteBuffer.wrap(("rolling " + i).getBytes(StandardCharsets.UTF_8)));
+		factory.close();
+		assertFalse(new File("TestData", "0").exists());
+
+		// views from get() would show whatever went over them, so without copies nothing is reused
+		factory = new MemoryMappedAssetFactory(Optional.of("TestData"),Optional.of(100_000)).withHoleReuse(true);
+		Addressable viewed = factory.createAddressable(ByteBuffer.wrap("viewed".getBytes(StandardCharsets.UTF_8)));
+		ByteBuffer view = viewed.get();
+		viewed.free();
+		factory.createAddressable(ByteBuffer.wrap("reused?".getBytes(StandardCharsets.UTF_8)));
+		assertEquals(0, factory.holeStats().reusedSlices);
+		assertEquals("viewed", StandardCharsets.UTF_8.decode(view).toString());
+	}
+
+	@Test
+	void testPreallocation() throws Exception {
+		factory.close();
+		factory = new MemoryMappedAssetFactory(Optional.of("TestData"),Optional.of(100_000)).withPreallocation(4, true);
+		Addressable a = factory.createAddressable();
+		for (int i = 0; i < 30_000; i++)
+			a.set(ByteBuffer.wrap(("preallocated " + i).getBytes(StandardCharsets.UTF_8)));
+		// written into about the fifth block, so the file should soon reach four blocks past that
+		long deadline = System.currentTimeMillis() + 5000;
+		while (new File("TestData", "0").length() < 9 * 100_000 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertTrue(new File("TestData", "0").length() >= 9 * 100_000, "file is " + new File("TestData", "0").length());
+		// the blocks already passed are unmapped, but the current one and the four ahead are mapped
+		assertTrue(factory.mappedBlockCount() >= 5);
+		assertEquals("preallocated 29999", StandardCharsets.UTF_8.decode(a.get()).toString());
+	}
+
+	@Test
+	void testWarmUp() throws Exception {
+		Addressable [] addressables = new Addressable[20_000];
+		for (int i = 0; i < addressables.length; i++)
+			addressables[i] = factory.createAddressable(ByteBuffer.wrap(String.format("%0100d", i).getBytes(StandardCharsets.UTF_8)));
+
+		// on demand, newest first, within the budget
+		MemoryMappedAssetFactory.WarmUpReport report = factory.warmUp(1_000_000, 4).get();
+		assertTrue(report.done);
+		assertEquals(1_000_000, report.bytes);
+		assertEquals(report.bytes, report.warmedBytes);
+		assertEquals(report.blocks, report.warmedBlocks);
+		assertTrue(report.blocks >= 10 && report.blocks <= 11, report.toString());
+		assertEquals(report.warmedBytes, factory.warmUpProgress().warmedBytes);
+
+		// and at open, everything there is
+		factory.close();
+		byte [] sBytes;
+		try (ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				ObjectOutputStream oout = new ObjectOutputStream(bout) ) {
+			oout.writeObject(new Object [] { factory.withWarmUp(Long.MAX_VALUE, 4), addressables });
+			oout.flush();
+			sBytes = bout.toByteArray();
+		}
+		try (ByteArrayInputStream bin = new ByteArrayInputStream(sBytes);
+				ObjectInputStream oin = new ObjectInputStream(bin)) {
+			Object [] o = (Object [])oin.readObject();
+			factory = (MemoryMappedAssetFactory)o[0];
+			addressables = (Addressable[])o[1];
+		}
+		assertEquals(String.format("%0100d", 7), StandardCharsets.UTF_8.decode(addressables[7].get()).toString());
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((factory.warmUpProgress() == null || !factory.warmUpProgress().done) && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		report = factory.warmUpProgress();
+		assertTrue(report.done);
+		assertTrue(report.warmedBytes >= 20_000 * 108L, report.toString());
+		for (Addressable a: addressables)
+			a.free();
+	}
+
+	@Test
+	void testCompression() throws Exception {
+		factory.close();
+		factory = new MemoryMappedAssetFactory(Optional.of("TestData"),Optional.of(100_000)).withCompression(64);
+		int count = 2000;
+		Addressable [] addressables = new Addressable[count];
+		String [] documents = new String[count];
+		for (int i = 0; i < count; i++) {
+			documents[i] = String.format("{\"id\":%d,\"name\":\"document %d\",\"tags\":[\"alpha\",\"beta\",\"gamma\"],\"body\":\"%s\"}", i, i, "lorem ipsum ".concat(Integer.toString(i%7)).replace(" ", "  "));
+			addressables[i] = factory.createAddressable(ByteBuffer.wrap(documents[i].getBytes(StandardCharsets.UTF_8)));
+		}
+		// too small to bother with
+		Addressable tiny = factory.createAddressable(ByteBuffer.wrap("tiny".getBytes(StandardCharsets.UTF_8)));
+		// too random to get smaller
+		byte [] noise = new byte[4096];
+		new java.util.Random(7).nextBytes(noise);
+		Addressable random = factory.createAddressable(ByteBuffer.wrap(noise));
+		// and large, so compressed chunk by chunk
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 500_000)
+			large.append(documents[large.length() % count]);
+		Addressable chunked = factory.createAddressable(ByteBuffer.wrap(large.toString().getBytes(StandardCharsets.UTF_8)));
+
+		for (int i = 0; i < count; i++) {
+			assertEquals(documents[i], StandardCharsets.UTF_8.decode(addressables[i].get()).toString());
+			assertEquals(documents[i].length(), addressables[i].size());
+		}
+		assertEquals("tiny", StandardCharsets.UTF_8.decode(tiny.get()).toString());
+		assertEquals(ByteBuffer.wrap(noise), random.get());
+		assertEquals(large.length(), chunked.length());
+		assertEquals(large.toString(), StandardCharsets.UTF_8.decode(chunked.get()).toString());
+
+		MemoryMappedAssetFactory.CompressionReport report = factory.compressionStats();
+		assertTrue(report.compressedSlices >= count, report.toString());
+		assertEquals(1, report.incompressibleSlices, report.toString());
+		assertTrue(report.ratio() > 2, report.toString());
+
+		// the codec goes along with the factory
+		factory.close();
+		byte [] sBytes;
+		try (ByteArrayOutputStream bout = new ByteArrayOutputStream(); ObjectOutputStream oout = new ObjectOutputStream(bout)) {
+			oout.writeObject(factory);
+			oout.writeObject(addressables[count-1]);
+			oout.flush();
+			sBytes = bout.toByteArray();
+		}
+		try (ObjectInputStream oin = new ObjectInputStream(new ByteArrayInputStream(sBytes))) {
+			factory = (MemoryMappedAssetFactory)oin.readObject();
+			Addressable last = (Addressable)oin.readObject();
+			assertEquals(documents[count-1], StandardCharsets.UTF_8.decode(last.get()).toString());
+		}
+	}
+
+	@Test
+	void testCorruptCompressedData() throws Exception {
+		DeflateCodec codec = new DeflateCodec();
+		byte [] original = new byte[10_000];
+		for (int i = 0; i < original.length; i++)
+			original[i] = (byte)(i % 17);
+		ByteBuffer compressed = codec.compress(ByteBuffer.wrap(original), original.length);
+		assertEquals(ByteBuffer.wrap(original), codec.decompress(compressed.duplicate(), original.length));
+
+		// cut short, and scrambled: both fail rather than spinning
+		ByteBuffer truncated = (ByteBuffer)compressed.duplicate().limit(compressed.remaining()/2);
+		assertThrows(IllegalStateException.class, ()->codec.decompress(truncated, original.length));
+		byte [] scrambled = new byte[compressed.remaining()];
+		compressed.duplicate().get(scrambled);
+		for (int i = 0; i < scrambled.length; i += 3)
+			scrambled[i] ^= 0x5A;
+		assertThrows(IllegalStateException.class, ()->codec.decompress(ByteBuffer.wrap(scrambled), original.length));
+	}
+
+	@Test
+	void testBackup() throws Exception {
+		File target = new File("TestData-backup");
+		File restored = new File("TestData-restored");
+		File [] streams = { new File("TestData-full.backup"), new File("TestData-incremental.backup") };
+		deleteDirectory(target);
+		deleteDirectory(restored);
+		try {
+			int count = 20000, more = 5000;
+			long [] handles = new long[count + more];
+			for (int i = 0; i < count; i++)
+				handles[i] = factory.write(ByteBuffer.wrap(("backed up " + i).getBytes(StandardCharsets.UTF_8)));
+			BackupReport full = factory.backup(target);
+			BackupReport fullStream;
+			try (FileChannel out = FileChannel.open(streams[0].toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				fullStream = factory.backup(out, null);
+			}
+			assertFalse(full.incremental);
+			assertTrue(full.copiedBytes > count * (8 + "backed up ".length()), full.toString());
+
+			// the store carries on, and incremental backups pick up both new slices and released ones
+			for (int i = 0; i < count; i += 2)
+				factory.release(handles[i]);
+			for (int i = count; i < count + more; i++)
+				handles[i] = factory.write(ByteBuffer.wrap(("backed up " + i).getBytes(StandardCharsets.UTF_8)));
+			BackupReport incremental = factory.backup(target, full);
+			try (FileChannel out = FileChannel.open(streams[1].toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				factory.backup(out, fullStream);
+			}
+			assertTrue(incremental.incremental);
+			assertTrue(incremental.copiedBytes < full.copiedBytes / 2, incremental.toString());
+			assertTrue(incremental.refCounts >= count, incremental.toString());
+
+			for (File stream: streams)
+				try (FileChannel in = FileChannel.open(stream.toPath(), StandardOpenOption.READ)) {
+					MemoryMappedAssetFactory.restore(in, Collections.singletonList(restored.getPath()));
+				}
+
+			for (File copy: new File [] { target, restored }) {
+				MemoryMappedAssetFactory recovered = MemoryMappedAssetFactory.recover(Optional.of(copy.getPath()), Optional.empty());
+				try {
+					assertEquals(count/2 + more, recovered.recoveryReport().liveSlices, recovered.recoveryReport().toString());
+					for (int i = 1; i < count + more; i += (i < count ? 2 : 1))
+						assertEquals("backed up " + i, StandardCharsets.UTF_8.decode(recovered.read(handles[i])).toString());
+				} finally {
+					recovered.close();
+				}
+			}
+		} finally {
+			deleteDirectory(target);
+			deleteDirectory(restored);
+			for (File stream: streams)
+				stream.delete();
+		}
+	}
+
+	@Test
+	void testBackupAfterCompaction() throws Exception {
+		File target = new File("TestData-backup");
+		File restored = new File("TestData-restored");
+		File [] streams = { new File("TestData-full.backup"), new File("TestData-incremental.backup") };
+		deleteDirectory(target);
+		deleteDirectory(restored);
+		try {
+			int count = 20000;
+			long [] handles = new long[count];
+			for (int i = 0; i < count; i++)
+				handles[i] = factory.write(ByteBuffer.wrap(("moved " + i).getBytes(StandardCharsets.UTF_8)));
+			for (int i = 0; i < count; i += 2)
+				factory.release(handles[i]);
+			BackupReport full = factory.backup(target);
+			BackupReport fullStream;
+			try (FileChannel out = FileChannel.open(streams[0].toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				fullStream = factory.backup(out, null);
+			}
+
+			// move the survivors out of the first file and let it go, so only the forwards know where they are
+			Addressable churn = factory.createAddressable();
+			for (int i = 0; i < 200000; i++)
+				churn.set(ByteBuffer.wrap(("churning through version " + i + " of a document that keeps changing").getBytes(StandardCharsets.UTF_8)));
+			for (int i = 0; i < 10; i++)
+				factory.compact(Long.MAX_VALUE);
+			for (int i = 0; i < 300 && new File("TestData", "0").exists(); i++) {
+				Thread.sleep(50);
+				factory.createAddressable(ByteBuffer.wrap("nudge".getBytes(StandardCharsets.UTF_8))).free();
+			}
+			assertFalse(new File("TestData", "0").exists(), "the compacted file should have been deleted");
+
+			factory.backup(target, full);
+			try (FileChannel out = FileChannel.open(streams[1].toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				factory.backup(out, fullStream);
+			}
+			for (File stream: streams)
+				try (FileChannel in = FileChannel.open(stream.toPath(), StandardOpenOption.READ)) {
+					MemoryMappedAssetFactory.restore(in, Collections.singletonList(restored.getPath()));
+				}
+
+			for (File copy: new File [] { target, restored }) {
+				assertFalse(new File(copy, "0").exists(), "the copy should have let the compacted file go too");
+				MemoryMappedAssetFactory recovered = MemoryMappedAssetFactory.recover(Optional.of(copy.getPath()), Optional.empty());
+				try {
+					for (int i = 1; i < count; i += 2)
+						assertEquals("moved " + i, StandardCharsets.UTF_8.decode(recovered.read(handles[i])).toString());
+				} finally {
+					recovered.close();
+				}
+			}
+		} finally {
+			deleteDirectory(target);
+			deleteDirectory(restored);
+			for (File stream: streams)
+				stream.delete();
+		}
+	}
+
+	@Test
+	void testReplication() throws Exception {
+		File followerDir = new File("TestData-follower");
+		deleteDirectory(followerDir);
+		factory.close();
+		factory = new MemoryMappedAssetFactory(Optional.of("TestData"),Optional.of(100_000)).withReplication(0, 50);
+		int count = 10000;
+		long [] handles = new long[3 * count];
+		for (int i = 0; i < count; i++)
+			handles[i] = factory.write(ByteBuffer.wrap(("replicated " + i).getBytes(StandardCharsets.UTF_8)));
+		MemoryMappedAssetFactory follower = MemoryMappedAssetFactory.follow(Optional.of(followerDir.getPath()), Optional.of(100_000), "localhost", factory.replicationPort());
+		try {
+			// some written after the follower connected, and some released so the low watermark moves on
+			for (int i = count; i < 3 * count; i++)
+				handles[i] = factory.write(ByteBuffer.wrap(("replicated " + i).getBytes(StandardCharsets.UTF_8)));
+			for (int i = 0; i < count; i++)
+				factory.release(handles[i]);
+			assertTrue(factory.replicationStats().lowWatermark > 1);
+
+			boolean caughtUp = false;
+			for (long deadline = System.currentTimeMillis() + 10_000; !caughtUp && System.currentTimeMillis() < deadline; ) {
+				Thread.sleep(50);
+				caughtUp = follower.replicationStats().lowWatermark == factory.replicationStats().lowWatermark;
+				for (int i = count; caughtUp && i < 3 * count; i++) {
+					try {
+						caughtUp = ("replicated " + i).equals(StandardCharsets.UTF_8.decode(follower.read(handles[i])).toString());
+					} catch (RuntimeException e) {
+						caughtUp = false;
+					}
+				}
+			}
+			assertTrue(caughtUp, follower.replicationStats().toString());
+			assertEquals(1, factory.replicationStats().connections);
+			assertEquals(1, follower.replicationStats().connections);
+			assertEquals("replicated " + count, StandardCharsets.UTF_8.decode(follower.wrap(handles[count]).get()).toString());
+			assertThrows(UnsupportedOperationException.class, ()->follower.write(ByteBuffer.wrap(new byte [] { 1 })));
+			assertThrows(UnsupportedOperationException.class, ()->follower.release(handles[count]));
+		} finally {
+			follower.close();
+			deleteDirectory(followerDir);
+		}
+	}
+
+	@Test
+	void testReplicationAfterCompaction() throws Exception {
+		File followerDir = new File("TestData-follower");
+		deleteDirectory(followerDir);
+		factory.close();
+		factory = new MemoryMappedAssetFactory(Optional.of("TestData"),Optional.of(100_000)).withReplication(0, 50);
+		int count = 20000;
+		long [] handles = new long[count];
+		for (int i = 0; i < count; i++)
+			handles[i] = factory.write(ByteBuffer.wrap(("moved " + i).getBytes(StandardCharsets.UTF_8)));
+		for (int i = 0; i < count; i += 2)
+			factory.release(handles[i]);
+		MemoryMappedAssetFactory follower = MemoryMappedAssetFactory.follow(Optional.of(followerDir.getPath()), Optional.of(100_000), "localhost", factory.replicationPort());
+		try {
+			// move the survivors out of the first file and let it go, so only the forwards know where they are
+			Addressable churn = factory.createAddressable();
+			for (int i = 0; i < 200000; i++)
+				churn.set(ByteBuffer.wrap(("churning through version " + i + " of a document that keeps changing").getBytes(StandardCharsets.UTF_8)));
+			for (int i = 0; i < 10; i++)
+				factory.compact(Long.MAX_VALUE);
+			for (int i = 0; i < 300 && new File("TestData", "0").exists(); i++) {
+				Thread.sleep(50);
+				factory.createAddressable(ByteBuffer.wrap("nudge".getBytes(StandardCharsets.UTF_8))).free();
+			}
+			assertFalse(new File("TestData", "0").exists(), "the compacted file should have been deleted");
+
+			for (long deadline = System.currentTimeMillis() + 10_000; new File(followerDir, "0").exists() && System.currentTimeMillis() < deadline; )
+				Thread.sleep(50);
+			assertFalse(new File(followerDir, "0").exists(), follower.replicationStats().toString());
+			for (int i = 1; i < count; i += 2)
+				assertEquals("moved " + i, StandardCharsets.UTF_8.decode(follower.read(handles[i])).toString());
+		} finally {
+			follower.close();
+			deleteDirectory(followerDir);
+		}
+	}
+
+	@Test
+	void testMetrics() throws Exception {
+		int count = 10000;
+		Addressable [] addressables = new Addressable[count];
+		for (int i = 0; i < count; i++)
+			addressables[i] = factory.createAddressable(ByteBuffer.allocate(92));
+		for (int i = 0; i < count; i++)
+			assertEquals(92, addressables[i].get().limit());
+		factory.sync();
+
+		// reads inside the factory, like the lengths behind length(), are not counted
+		for (int i = 0; i < count; i++)
+			assertEquals(92, addressables[i].length());
+
+		MemoryMappedAssetFactory.MetricsReport metrics = factory.metrics();
+		assertEquals(count, metrics.writes.count, metrics.toString());
+		assertEquals(count * 100L, metrics.writtenBytes, metrics.toString());
+		assertEquals(count, metrics.reads.count, metrics.toString());
+		assertTrue(metrics.mappings.count >= 10, "10 blocks of 100_000 bytes at least: "+metrics);
+		assertTrue(metrics.syncs.count >= 1, metrics.toString());
+		assertTrue(metrics.writes.percentileNanos(0.5) <= metrics.writes.percentileNanos(0.99), metrics.toString());
+		assertTrue(metrics.writes.percentileNanos(0.99) <= metrics.writes.maxNanos, metrics.toString());
+		assertEquals(count * 100L, metrics.liveBytes, metrics.toString());
+		assertEquals(metrics.highWatermark - metrics.lowWatermark - metrics.liveBytes, metrics.deadBytes, metrics.toString());
+		assertTrue(metrics.mappedBlocks >= 10, metrics.toString());
+
+		// freeing the newer half leaves dead bytes the low watermark cannot pass
+		for (int i = count/2; i < count; i++)
+			addressables[i].free();
+		metrics = factory.metrics();
+		assertEquals(count/2 * 100L, metrics.liveBytes, metrics.toString());
+		assertTrue(metrics.deadBytes >= count/2 * 100L, metrics.toString());
+		for (int i = 0; i < count/2; i++)
+			addressables[i].free();
+		metrics = factory.metrics();
+		assertEquals(0, metrics.liveBytes, metrics.toString());
+		assertTrue(metrics.watermarkLag() < 100_000, metrics.toString());
+	}
+
+	@Test
+	void testAdmissionControl() throws Exception {
+		factory.withAdmissionControl(200_000, 400_000, 0, 0);
+		// the pinned slice holds the low watermark, so everything churned past it is unreclaimed
+		Addressable pinned = factory.createAddressable(ByteBuffer.wrap("pinned".getBytes(StandardCharsets.UTF_8)));
+		Addressable churned = factory.createAddressable();
+		WriteRejectedException rejected = null;
+		int written = 0;
+		for (; written < 1000 && rejected == null; written++) {
+			try {
+				churned.set(ByteBuffer.allocate(10_000).putInt(0, written));
+			} catch (WriteRejectedException e) {
+				rejected = e;
+			}
+		}
+		assertTrue(rejected != null, "nothing can be compacted inside the first file, so writes must be turned away");
+		assertTrue(rejected.unreclaimedBytes >= 400_000, rejected.getMessage());
+		assertEquals(-1, rejected.freeDiskBytes);
+		// the rejected write left the value alone
+		assertEquals(written - 2, churned.get().getInt(0));
+		MemoryMappedAssetFactory.AdmissionReport stats = factory.admissionStats();
+		assertEquals(1, stats.rejectedWrites, stats.toString());
+		assertTrue(stats.throttledWrites > 0, stats.toString());
+		assertTrue(stats.throttles.maxNanos > 0, stats.toString());
+		assertEquals(1.0, stats.pressure, stats.toString());
+
+		// releasing what pinned the low watermark takes the pressure off
+		pinned.free();
+		churned.set(ByteBuffer.allocate(10_000).putInt(0, -1));
+		assertEquals(-1, churned.get().getInt(0));
+		assertEquals(0.0, factory.admissionStats().pressure, factory.admissionStats().toString());
+
+		// with files of 400_000 bytes the compactor can move a pinned slice on, and no write is ever refused
+		File compacted = new File("TestData-admission");
+		deleteDirectory(compacted);
+		MemoryMappedAssetFactory small = new MemoryMappedAssetFactory(Optional.of(compacted.getPath()), Optional.of(10_000))
+				.withAdmissionControl(300_000, 1_000_000, 0, 0);
+		try {
+			pinned = small.createAddressable(ByteBuffer.wrap("pinned".getBytes(StandardCharsets.UTF_8)));
+			churned = small.createAddressable();
+			for (int i = 0; i < 600; i++)
+				churned.set(ByteBuffer.allocate(5_000).putInt(0, i));
+			stats = small.admissionStats();
+			MemoryMappedAssetFactory.CompactionReport totals = small.compactionTotals();
+			assertEquals(0, stats.rejectedWrites, stats+" "+totals);
+			assertTrue(totals.relocatedSlices > 0, stats+" "+totals);
+			assertEquals("pinned", StandardCharsets.UTF_8.decode(pinned.get()).toString());
+			assertEquals(599, churned.get().getInt(0));
+		} finally {
+			small.close();
+			deleteDirectory(compacted);
+		}
+	}
+
+	@Test
+	void testViewsOutliveTheirFile() throws Exception {
+		Addressable old = factory.createAddressable(ByteBuffer.wrap("held past its file".getBytes(StandardCharsets.UTF_8)));
+		ByteBuffer view = old.get();
+		assertTrue(view.isDirect(), "without explicit unmapping get() hands out views");
+		old.free();
+		Addressable rolling = factory.createAddressable();
+		for (int i = 0; i < 300_000; i++)
+			rolling.set(ByteBuffer.wrap(("rolling " + i).getBytes(StandardCharsets.UTF_8)));
+		for (int i = 0; i < 50 && new File("TestData", "0").exists(); i++) {
+			Thread.sleep(100);
+			rolling.get();
+		}
+		assertFalse(new File("TestData", "0").exists());
+		// the file is gone, but the mapping under the view is left to the collector
+		Thread.sleep(1100);
+		rolling.get();
+		assertEquals("held past its file", StandardCharsets.UTF_8.decode(view).toString());
+		factory.close();
+		assertEquals("held past its file", StandardCharsets.UTF_8.decode((ByteBuffer)view.rewind()).toString());
+	}
+
+	@Test
+	void testExplicitUnmapCopies() throws Exception {
+		factory.close();
+		deleteDirectory(new File("TestData"));
+		factory = new MemoryMappedAssetFactory(Optional.of("TestData"),Optional.of(100_000)).withExplicitUnmap(true);
+		Addressable old = factory.createAddressable(ByteBuffer.wrap("copied out".getBytes(StandardCharsets.UTF_8)));
+		ByteBuffer copy = old.get();
+		assertFalse(copy.isDirect(), "with explicit unmapping get() hands out copies");
+		old.free();
+		Addressable rolling = factory.createAddressable();
+		for (int i = 0; i < 300_000; i++)
+			rolling.set(ByteBuffer.wrap(("rolling " + i).getBytes(StandardCharsets.UTF_8)));
+		MemoryMappedAssetFactory.ReclaimReport report = factory.reclaimStats();
+		for (int i = 0; i < 50 && report.pendingFiles > 0; i++) {
+			Thread.sleep(100);
+			rolling.get();
+			report = factory.reclaimStats();
+		}
+		assertTrue(report.unmappedBlocks > 0, report.toString());
+		assertFalse(new File("TestData", "0").exists());
+		assertEquals("copied out", StandardCharsets.UTF_8.decode(copy).toString());
+	}
+
+	private static void deleteDirectory(File f) {
+		if (f.exists() && f.isDirectory()) {
+			for (File d: f.listFiles())
+				d.delete();
+			f.delete();
+		}
+	}
 }
@@ -0,0 +1,157 @@
+package com.ddougher.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.ddougher.util.AssetFactory.Addressable;
+
+
+class TestTieredAssetFactory {
+
+	MemoryMappedAssetFactory cold;
+	TieredAssetFactory factory;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		File f = new File("TestData");
+		if (f.exists() && f.isDirectory()) {
+			for (File d: f.listFiles())
+				d.delete();
+			f.delete();
+		}
+		cold = new MemoryMappedAssetFactory(Optional.of("TestData"),Optional.of(100_000));
+		factory = new TieredAssetFactory(cold, 100_000);
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		cold.close();
+	}
+
+	private static ByteBuffer bytes(String s) {
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String string(ByteBuffer b) {
+		byte [] data = new byte[b.limit()];
+		b.duplicate().get(data);
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	void testSemantics() {
+		Addressable a = factory.createAddressable(bytes("hello"));
+		Addressable b = factory.createAddressable(bytes(" world"));
+		Addressable c = factory.createAddressable();
+		c.set(a);
+		a.append(b);
+		assertEquals("hello world", string(a.get()));
+		assertEquals("hello", string(c.get()));
+		a.swap(c, null);
+		assertEquals("hello", string(a.get()));
+		assertEquals("hello world", string(c.get()));
+		c.resize(4, null);
+		assertEquals("hell", string(c.get()));
+		assertEquals(4, c.size());
+
+		factory.flush();
+		c.free();
+		assertEquals(0, c.size());
+		assertEquals("hello", string(a.get()));
+	}
+
+	@Test
+	void testWriteCoalescing() {
+		Addressable a = factory.createAddressable();
+		for (int i = 0; i < 1000; i++)
+			a.set(bytes("version "+i));
+		factory.flush();
+		TieredAssetFactory.TierReport report = factory.tierStats();
+		assertEquals(999, report.coalescedWrites, report.toString());
+		assertEquals(1, report.writtenBack, report.toString());
+		assertEquals("version 999", string(a.get()));
+	}
+
+	@Test
+	void testEvictionAndAdmission() {
+		ByteBuffer data = ByteBuffer.allocate(1000);
+		List<Addressable> hot = new ArrayList<Addressable>();
+		for (int i = 0; i < 50; i++) {
+			data.putInt(0, i);
+			hot.add(factory.createAddressable(data));
+		}
+		for (int round = 0; round < 5; round++)
+			for (Addressable a: hot)
+				a.get();
+
+		// a scan of values seen once should not push out the frequently read ones
+		List<Addressable> scan = new ArrayList<Addressable>();
+		for (int i = 0; i < 2000; i++) {
+			data.putInt(0, 1000 + i);
+			scan.add(factory.createAddressable(data));
+		}
+		long missesBefore = factory.tierStats().misses;
+		for (int i = 0; i < hot.size(); i++)
+			assertEquals(i, hot.get(i).get().getInt(0));
+		TieredAssetFactory.TierReport report = factory.tierStats();
+		assertTrue(report.misses - missesBefore < 10, report.toString());
+		assertTrue(report.residentBytes <= 100_000, report.toString());
+		assertTrue(report.writtenBack > 1000, report.toString());
+
+		for (int i = 0; i < scan.size(); i++)
+			assertEquals(1000 + i, scan.get(i).get().getInt(0));
+	}
+
+	@Test
+	void testCloseWritesBack() throws Exception {
+		int count = 100;
+		Addressable [] addressables = new Addressable[count];
+		Addressable [] colds = new Addressable[count];
+		for (int i = 0; i < count; i++) {
+			addressables[i] = factory.createAddressable();
+			for (int v = 0; v < 3; v++)
+				addressables[i].set(bytes("value " + i + " version " + v));
+			colds[i] = factory.coldOf(addressables[i]);
+		}
+		assertEquals(0, factory.tierStats().writtenBack, "everything should still be resident, and only in memory");
+
+		factory.close();
+		assertEquals(count, factory.tierStats().writtenBack);
+		assertThrows(IllegalStateException.class, () -> addressables[0].set(bytes("too late")));
+		assertThrows(IllegalStateException.class, () -> factory.createAddressable());
+		assertEquals("value 0 version 2", string(addressables[0].get()));
+
+		// the cold tier was closed with the values in it, so it opens again with them
+		byte [] sBytes;
+		try (ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				ObjectOutputStream oout = new ObjectOutputStream(bout) ) {
+			oout.writeObject(new Object [] { cold, colds });
+			oout.flush();
+			sBytes = bout.toByteArray();
+		}
+		try (ObjectInputStream oin = new ObjectInputStream(new ByteArrayInputStream(sBytes))) {
+			Object [] o = (Object [])oin.readObject();
+			cold = (MemoryMappedAssetFactory)o[0];
+			colds = (Addressable[])o[1];
+		}
+		for (int i = 0; i < count; i++)
+			assertEquals("value " + i + " version 2", string(colds[i].get()));
+	}
+
+}